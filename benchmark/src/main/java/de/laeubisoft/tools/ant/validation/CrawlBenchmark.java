@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time of a recursive crawl of the synthetic site of a local
+ * {@link ValidatorStub} with {@value #PAGES} pages, each page is fetched and
+ * sent to the validator
+ * 
+ * @author Christoph Läubrich
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CrawlBenchmark {
+
+    private static final int PAGES = 200;
+
+    /**
+     * Latency of the validator in milliseconds, up to half of it is added as
+     * jitter
+     */
+    @Param({ "0", "20" })
+    public int               latency;
+
+    @Param({ "1", "8" })
+    public int               threads;
+
+    @Param({ "false", "true" })
+    public boolean           uploadPages;
+
+    private ValidatorStub    stub;
+
+    private Project          project;
+
+    private URL              start;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stub = new ValidatorStub(0);
+        stub.setLatency(latency);
+        stub.setJitter(latency / 2);
+        stub.setErrors(2);
+        stub.setPages(PAGES);
+        stub.setLinks(20);
+        stub.start();
+        project = new Project();
+        start = new URL(stub.getPageURL(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Benchmark
+    public void crawl() {
+        W3CMarkupValidationTask task = new W3CMarkupValidationTask();
+        task.setProject(project);
+        task.setValidator(stub.getMarkupValidatorURL());
+        task.setUri(start);
+        task.setRecurse(true);
+        task.setThreads(threads);
+        task.setUploadPages(uploadPages);
+        task.setFail(false);
+        task.execute();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Loads the checked in fixtures of the benchmarks (see
+ * src/main/resources/fixtures), so all results can be reproduced offline
+ * 
+ * @author Christoph Läubrich
+ */
+final class Fixtures {
+
+    /**
+     * How often the errors of the medium response are repeated for the huge
+     * one
+     */
+    private static final int HUGE_FACTOR = 50;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Loads a fixture
+     * 
+     * @param name
+     *            the file name of the fixture
+     * @return the content
+     * @throws IOException
+     *             if the fixture can't be read
+     */
+    static byte[] load(String name) throws IOException {
+        InputStream stream = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (stream == null) {
+            throw new FileNotFoundException("fixture " + name + " not found");
+        }
+        try {
+            return Tools.readFully(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Loads a recorded validator response
+     * 
+     * @param validator
+     *            <code>markup</code> or <code>css</code>
+     * @param size
+     *            <code>small</code>, <code>medium</code> or <code>huge</code>,
+     *            the huge response is the medium one with all errors repeated
+     *            {@value #HUGE_FACTOR} times, to not check in megabytes of XML
+     * @return the response
+     * @throws IOException
+     *             if the fixture can't be read
+     */
+    static byte[] response(String validator, String size) throws IOException {
+        if (!"huge".equals(size)) {
+            return load(validator + "-" + size + ".xml");
+        }
+        String medium = new String(load(validator + "-medium.xml"), "UTF-8");
+        int start = medium.indexOf("<m:error>");
+        int end = medium.lastIndexOf("</m:error>") + "</m:error>".length();
+        if (start < 0 || end < start) {
+            throw new IOException("the medium " + validator + " response contains no errors");
+        }
+        String errors = medium.substring(start, end);
+        StringBuilder sb = new StringBuilder(medium.length() + errors.length() * (HUGE_FACTOR - 1));
+        sb.append(medium, 0, start);
+        for (int i = 0; i < HUGE_FACTOR; i++) {
+            sb.append(errors);
+        }
+        sb.append(medium, end, medium.length());
+        return bytes(sb.toString());
+    }
+
+    private static byte[] bytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is a required encoding", e);
+        }
+    }
+}
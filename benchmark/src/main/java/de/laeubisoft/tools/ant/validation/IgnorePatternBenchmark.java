@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures matching a large set of URLs against the ignore patterns of the
+ * markup task, the result is the time per URL. URLs and patterns are generated
+ * with a fixed seed, so every run uses the same set.
+ * 
+ * @author Christoph Läubrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IgnorePatternBenchmark {
+
+    private static final int        URLS       = 10000;
+
+    /**
+     * Typical patterns, further ones exclude single sections of the site
+     */
+    private static final String[]   COMMON     = { ".*\\.zip", ".*\\.pdf", ".*/archive/.*", ".*\\?sort=.*", ".*/print/.*" };
+
+    private static final String[]   EXTENSIONS = { ".html", ".html", ".html", ".php?id=17", ".zip", ".pdf", "/" };
+
+    @Param({ "1", "10", "50" })
+    public int                      patterns;
+
+    private W3CMarkupValidationTask task;
+
+    private String[]                urls;
+
+    @Setup
+    public void setup() {
+        task = new W3CMarkupValidationTask();
+        task.setProject(new Project());
+        for (int i = 0; i < patterns; i++) {
+            IgnorePattern pattern = new IgnorePattern();
+            pattern.addText(i < COMMON.length ? COMMON[i] : ".*/section" + i + "/private/.*");
+            task.addConfiguredIgnore(pattern);
+        }
+        Random random = new Random(42);
+        urls = new String[URLS];
+        for (int i = 0; i < URLS; i++) {
+            StringBuilder sb = new StringBuilder("http://www.example.test/section");
+            sb.append(random.nextInt(60));
+            if (random.nextInt(10) == 0) {
+                sb.append("/private");
+            }
+            sb.append("/page").append(random.nextInt(1000));
+            sb.append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            urls[i] = sb.toString();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public int isIgnored() {
+        int ignored = 0;
+        for (String url : urls) {
+            if (task.isIgnored(url)) {
+                ignored++;
+            }
+        }
+        return ignored;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ccil.cowan.tagsoup.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Measures the extraction of links with TagSoup like it is done for each page
+ * when recursing. The corpora are a navigation heavy XHTML portal page, a
+ * large HTML 4 table and an old hand written tag soup page.
+ * 
+ * @author Christoph Läubrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LinkExtractionBenchmark {
+
+    @Param({ "portal", "catalog", "legacy" })
+    public String     corpus;
+
+    private URL       page;
+
+    private byte[]    html;
+
+    private XMLReader reusedParser;
+
+    @Setup
+    public void setup() throws IOException {
+        page = new URL("http://www.example.test/section1/" + corpus + ".html");
+        html = Fixtures.load(corpus + ".html");
+        reusedParser = new Parser();
+    }
+
+    /**
+     * Like the crawler does it, with a new parser for each page
+     */
+    @Benchmark
+    public List<String> extract() throws IOException, SAXException {
+        return extract(new Parser());
+    }
+
+    /**
+     * Shows how much of the time is spent in the setup of the parser
+     */
+    @Benchmark
+    public List<String> extractReusingParser() throws IOException, SAXException {
+        return extract(reusedParser);
+    }
+
+    private List<String> extract(XMLReader reader) throws IOException, SAXException {
+        LinkExtractor links = new LinkExtractor(page, new BufferedLog(), false);
+        reader.setContentHandler(links);
+        reader.parse(new InputSource(new ByteArrayInputStream(html)));
+        return links.getLinks();
+    }
+}
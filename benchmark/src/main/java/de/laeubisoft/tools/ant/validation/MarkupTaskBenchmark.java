@@ -0,0 +1,98 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency distribution of checking a single URI with
+ * W3CMarkupValidationTask against a local {@link ValidatorStub}, the sample
+ * mode reports the percentiles (p99, p99.9, ...) of a call. Run it with more
+ * threads (-t) to see the tail latency under concurrent load.
+ * 
+ * @author Christoph Läubrich
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MarkupTaskBenchmark {
+
+    /**
+     * Latency of the validator in milliseconds, up to half of it is added as
+     * jitter
+     */
+    @Param({ "0", "20" })
+    public int            latency;
+
+    @Param({ "0", "50" })
+    public int            errors;
+
+    private ValidatorStub stub;
+
+    private Project       project;
+
+    private URL           page;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stub = new ValidatorStub(0);
+        stub.setLatency(latency);
+        stub.setJitter(latency / 2);
+        stub.setErrors(errors);
+        stub.start();
+        project = new Project();
+        page = new URL(stub.getPageURL(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Benchmark
+    public void checkURI() {
+        W3CMarkupValidationTask task = new W3CMarkupValidationTask();
+        task.setProject(project);
+        task.setValidator(stub.getMarkupValidatorURL());
+        task.setUri(page);
+        task.setFail(false);
+        task.execute();
+    }
+}
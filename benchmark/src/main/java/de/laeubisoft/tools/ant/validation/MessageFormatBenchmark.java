@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.ByteArrayInputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3.css.validator.CSSValidationResponse;
+import org.w3.markup.validator.Culprit;
+import org.w3.markup.validator.Error;
+import org.w3.markup.validator.MarkupValidationResponse;
+import org.w3.markup.validator.Warning;
+
+/**
+ * Measures the rendering of the log messages for the errors of the medium
+ * responses (40 each) with the default patterns of the tasks, the markup task
+ * uses {@link String#format(String, Object...)}, the CSS task
+ * {@link MessageFormat#format(String, Object...)}
+ * 
+ * @author Christoph Läubrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MessageFormatBenchmark {
+
+    /**
+     * The default errorPattern of W3CMarkupValidationTask
+     */
+    private static final String                    MARKUP_PATTERN = "[ERROR] [%7$s] Line %1$s, Column %2$s: %3$s (ID %4$s) source = '%5$s', %6$s";
+
+    /**
+     * The default errorFormat of W3CCSSValidationTask
+     */
+    private static final String                    CSS_FORMAT     = "[ERROR] [{0}][{1}] Line {2}: {3}, context = {4}, type = {5}, subtype = {6}, skipped = {7}";
+
+    private final List<Culprit>                    markupErrors   = new ArrayList<Culprit>();
+
+    private final List<org.w3.css.validator.Error> cssErrors      = new ArrayList<org.w3.css.validator.Error>();
+
+    private String                                 markupUri;
+
+    private String                                 cssUri;
+
+    private MessageFormat                          cssFormat;
+
+    @Setup
+    public void setup() throws Exception {
+        new MarkupResponseReader(new MarkupResponseReader.Listener() {
+
+            public void startResponse(MarkupValidationResponse response) {
+                markupUri = response.getUri();
+            }
+
+            public void error(MarkupValidationResponse response, Error error) {
+                markupErrors.add(error);
+            }
+
+            public void warning(MarkupValidationResponse response, Warning warning) {
+                //only errors are rendered
+            }
+
+            public void endResponse(MarkupValidationResponse response) {
+                //nothing to do
+            }
+        }).read(new ByteArrayInputStream(Fixtures.response("markup", "medium")));
+        new CSSResponseReader(new CSSResponseReader.Listener() {
+
+            public void startResponse(CSSValidationResponse response) {
+                cssUri = response.getUri();
+            }
+
+            public void error(CSSValidationResponse response, String uri, org.w3.css.validator.Error error) {
+                cssErrors.add(error);
+            }
+
+            public void warning(CSSValidationResponse response, String uri, org.w3.css.validator.Warning warning) {
+                //only errors are rendered
+            }
+
+            public void endResponse(CSSValidationResponse response) {
+                //nothing to do
+            }
+        }).read(new ByteArrayInputStream(Fixtures.response("css", "medium")));
+        cssFormat = new MessageFormat(CSS_FORMAT);
+    }
+
+    /**
+     * Like W3CMarkupValidationTask renders errors and warnings
+     */
+    @Benchmark
+    public void markupStringFormat(Blackhole blackhole) {
+        for (Culprit culprit : markupErrors) {
+            blackhole.consume(String.format(MARKUP_PATTERN, culprit.getLine(), culprit.getCol(), culprit.getMessage(), culprit.getMessageid(), culprit.getSource(), culprit.getExplanation(), markupUri));
+        }
+    }
+
+    /**
+     * Like W3CCSSValidationTask renders errors, the pattern is parsed for
+     * each message
+     */
+    @Benchmark
+    public void cssMessageFormat(Blackhole blackhole) {
+        for (org.w3.css.validator.Error error : cssErrors) {
+            blackhole.consume(MessageFormat.format(CSS_FORMAT, cssUri, error.getLevel(), error.getLine(), Tools.trim(error.getMessage()), Tools.trim(error.getContext()), Tools.trim(error.getErrortype()), Tools.trim(error.getErrorsubtype()), Tools.trim(error.getSkippedstring())));
+        }
+    }
+
+    /**
+     * The same as {@link #cssMessageFormat(Blackhole)} but the pattern is
+     * parsed only once
+     */
+    @Benchmark
+    public void cssMessageFormatPrecompiled(Blackhole blackhole) {
+        for (org.w3.css.validator.Error error : cssErrors) {
+            blackhole.consume(cssFormat.format(new Object[] { cssUri, error.getLevel(), error.getLine(), Tools.trim(error.getMessage()), Tools.trim(error.getContext()), Tools.trim(error.getErrortype()), Tools.trim(error.getErrorsubtype()), Tools.trim(error.getSkippedstring()) }));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3.css.validator.CSSValidationResponse;
+import org.w3.markup.validator.Error;
+import org.w3.markup.validator.MarkupValidationResponse;
+import org.w3.markup.validator.Warning;
+
+/**
+ * Measures reading recorded SOAP responses of the markup and the CSS
+ * validator, this is the work done for each checked document once the
+ * validator answered (or a cached response is replayed)
+ * 
+ * @author Christoph Läubrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResponseReaderBenchmark {
+
+    @Param({ "small", "medium", "huge" })
+    public String  size;
+
+    private byte[] markup;
+
+    private byte[] css;
+
+    @Setup
+    public void setup() throws IOException {
+        markup = Fixtures.response("markup", size);
+        css = Fixtures.response("css", size);
+    }
+
+    @Benchmark
+    public boolean markup(final Blackhole blackhole) throws XMLStreamException, JAXBException {
+        MarkupResponseReader reader = new MarkupResponseReader(new MarkupResponseReader.Listener() {
+
+            public void startResponse(MarkupValidationResponse response) {
+                blackhole.consume(response);
+            }
+
+            public void error(MarkupValidationResponse response, Error error) {
+                blackhole.consume(error);
+            }
+
+            public void warning(MarkupValidationResponse response, Warning warning) {
+                blackhole.consume(warning);
+            }
+
+            public void endResponse(MarkupValidationResponse response) {
+                blackhole.consume(response);
+            }
+        });
+        return reader.read(new ByteArrayInputStream(markup));
+    }
+
+    @Benchmark
+    public boolean css(final Blackhole blackhole) throws XMLStreamException, JAXBException {
+        CSSResponseReader reader = new CSSResponseReader(new CSSResponseReader.Listener() {
+
+            public void startResponse(CSSValidationResponse response) {
+                blackhole.consume(response);
+            }
+
+            public void error(CSSValidationResponse response, String uri, org.w3.css.validator.Error error) {
+                blackhole.consume(error);
+            }
+
+            public void warning(CSSValidationResponse response, String uri, org.w3.css.validator.Warning warning) {
+                blackhole.consume(warning);
+            }
+
+            public void endResponse(CSSValidationResponse response) {
+                blackhole.consume(response);
+            }
+        });
+        return reader.read(new ByteArrayInputStream(css));
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the markup and the CSS validator and a synthetic
+ * web site, so the tasks can be load tested without the public services of the
+ * W3C. The validators answer with SOAP 1.2 responses like the real ones (see
+ * w3c-markup-validator.xsd and w3c-css-validator.xsd), the latency, the number
+ * of errors and warnings, the size of the responses and the rate of failing
+ * requests can be changed at any time. The site consists of numbered pages
+ * with many links to each other, they support conditional requests with an
+ * ETag.
+ * <p>
+ * It can also be started on its own, e.g.
+ * <code>java -cp benchmarks.jar de.laeubisoft.tools.ant.validation.ValidatorStub port=8080 latency=50 errors=3</code>
+ * </p>
+ * 
+ * @author Christoph Läubrich
+ */
+final class ValidatorStub {
+
+    /**
+     * Path of the markup validator
+     */
+    static final String           CHECK         = "/check";
+
+    /**
+     * Path of the CSS validator
+     */
+    static final String           CSS_VALIDATOR = "/css-validator/";
+
+    /**
+     * Path of the synthetic site
+     */
+    static final String           SITE          = "/site/";
+
+    private static final String   SOAP_TYPE     = "application/soap+xml; charset=utf-8";
+
+    static {
+        //the server writes headers and body separately, with Nagle's algorithm every keep-alive request would wait for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer      server;
+
+    private final ExecutorService executor;
+
+    private final Random          random        = new Random(42);
+
+    private final AtomicInteger   requests      = new AtomicInteger();
+
+    private final AtomicInteger   failures      = new AtomicInteger();
+
+    private volatile int          latency;
+
+    private volatile int          jitter;
+
+    private volatile int          errors;
+
+    private volatile int          warnings;
+
+    private volatile int          padding       = 200;
+
+    private volatile double       failureRate;
+
+    private volatile int          failureStatus = 503;
+
+    private volatile int          pages         = 1000;
+
+    private volatile int          links         = 50;
+
+    /**
+     * Creates a stub bound to the loopback interface
+     * 
+     * @param port
+     *            the port to listen on, <code>0</code> for any free port
+     * @throws IOException
+     *             if the port can't be bound
+     */
+    ValidatorStub(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 128);
+        executor = Executors.newCachedThreadPool(new WorkerThreadFactory("validator-stub"));
+        server.setExecutor(executor);
+        server.createContext(CHECK, new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMarkup(exchange);
+            }
+        });
+        server.createContext(CSS_VALIDATOR, new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCSS(exchange);
+            }
+        });
+        server.createContext(SITE, new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                handlePage(exchange);
+            }
+        });
+    }
+
+    /**
+     * Starts to answer requests
+     */
+    void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server, requests in progress get up to one second to complete
+     */
+    void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL of the server without a trailing slash
+     */
+    String getBaseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the URL to use as validator of the markup task
+     */
+    String getMarkupValidatorURL() {
+        return getBaseURL() + CHECK;
+    }
+
+    /**
+     * @return the URL to use as validator of the CSS task
+     */
+    String getCSSValidatorURL() {
+        return getBaseURL() + CSS_VALIDATOR;
+    }
+
+    /**
+     * @param page
+     *            the number of the page
+     * @return the URL of a page of the site
+     */
+    String getPageURL(int page) {
+        return getBaseURL() + SITE + "p" + page + ".html";
+    }
+
+    /**
+     * @param latency
+     *            the time in milliseconds each validator request takes at least
+     */
+    void setLatency(int latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param jitter
+     *            the maximum time in milliseconds randomly added to the latency
+     */
+    void setJitter(int jitter) {
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param errors
+     *            the number of errors in each response, a document with errors
+     *            is invalid
+     */
+    void setErrors(int errors) {
+        this.errors = errors;
+    }
+
+    /**
+     * @param warnings
+     *            the number of warnings in each response
+     */
+    void setWarnings(int warnings) {
+        this.warnings = warnings;
+    }
+
+    /**
+     * @param padding
+     *            the number of characters of the explanation of each markup
+     *            error, this controls the size of the responses
+     */
+    void setPadding(int padding) {
+        this.padding = padding;
+    }
+
+    /**
+     * @param failureRate
+     *            the probability (between <code>0</code> and <code>1</code>)
+     *            that a validator request fails
+     */
+    void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param failureStatus
+     *            the HTTP status of failing requests
+     */
+    void setFailureStatus(int failureStatus) {
+        this.failureStatus = failureStatus;
+    }
+
+    /**
+     * @param pages
+     *            the number of pages of the site
+     */
+    void setPages(int pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * @param links
+     *            the number of links on each page of the site
+     */
+    void setLinks(int links) {
+        this.links = links;
+    }
+
+    /**
+     * @return the number of validator requests so far
+     */
+    int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of validator requests that failed on purpose
+     */
+    int getFailures() {
+        return failures.get();
+    }
+
+    private void handleMarkup(HttpExchange exchange) throws IOException {
+        Map<String, String> query = readRequest(exchange);
+        if (!validatorRequest(exchange, query)) {
+            return;
+        }
+        String uri = query.get("uri");
+        if (uri == null) {
+            //like the real validator for fragments and uploads
+            uri = "upload://Form Submission";
+        }
+        uri = escape(uri);
+        int errorCount = errors;
+        int warningCount = warnings;
+        StringBuilder sb = new StringBuilder(512 + errorCount * (300 + padding) + warningCount * 200);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\">\n<env:Body>\n");
+        sb.append("<m:markupvalidationresponse env:encodingStyle=\"http://www.w3.org/2003/05/soap-encoding\" xmlns:m=\"http://www.w3.org/2005/10/markup-validator\">\n");
+        element(sb, "uri", uri);
+        element(sb, "checkedby", "http://validator.w3.org/");
+        element(sb, "doctype", "-//W3C//DTD XHTML 1.0 Transitional//EN");
+        element(sb, "charset", "utf-8");
+        element(sb, "validity", String.valueOf(errorCount == 0));
+        sb.append("<m:errors>\n");
+        element(sb, "errorcount", String.valueOf(errorCount));
+        sb.append("<m:errorlist>\n");
+        for (int i = 0; i < errorCount; i++) {
+            sb.append("<m:error>\n");
+            element(sb, "line", String.valueOf(10 + i));
+            element(sb, "col", String.valueOf(1 + i % 80));
+            sb.append("<m:source><![CDATA[&#60;table <strong title=\"Position where error was detected.\">b</strong>order=\"0\"&#62;]]></m:source>\n");
+            sb.append("<m:explanation><![CDATA[<p>");
+            for (int j = 0; j < padding; j++) {
+                sb.append((char) ('a' + j % 26));
+            }
+            sb.append("</p>]]></m:explanation>\n");
+            element(sb, "messageid", "108");
+            element(sb, "message", "there is no attribute &quot;border&quot;");
+            sb.append("</m:error>\n");
+        }
+        sb.append("</m:errorlist>\n</m:errors>\n<m:warnings>\n");
+        element(sb, "warningcount", String.valueOf(warningCount));
+        sb.append("<m:warninglist>\n");
+        for (int i = 0; i < warningCount; i++) {
+            sb.append("<m:warning>\n");
+            element(sb, "messageid", "W28");
+            element(sb, "message", "Using Direct Input mode: UTF-8 character encoding assumed");
+            sb.append("</m:warning>\n");
+        }
+        sb.append("</m:warninglist>\n</m:warnings>\n</m:markupvalidationresponse>\n</env:Body>\n</env:Envelope>\n");
+        send(exchange, 200, SOAP_TYPE, sb.toString());
+    }
+
+    private void handleCSS(HttpExchange exchange) throws IOException {
+        Map<String, String> query = readRequest(exchange);
+        if (!validatorRequest(exchange, query)) {
+            return;
+        }
+        String uri = query.get("uri");
+        if (uri == null) {
+            uri = "file://localhost/TextArea";
+        }
+        uri = escape(uri);
+        int errorCount = errors;
+        int warningCount = warnings;
+        StringBuilder sb = new StringBuilder(512 + errorCount * (300 + padding) + warningCount * 200);
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        sb.append("<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\">\n<env:Body>\n");
+        sb.append("<m:cssvalidationresponse env:encodingStyle=\"http://www.w3.org/2003/05/soap-encoding\" xmlns:m=\"http://www.w3.org/2005/07/css-validator\">\n");
+        element(sb, "uri", uri);
+        element(sb, "checkedby", "http://jigsaw.w3.org/css-validator/");
+        element(sb, "csslevel", "css21");
+        element(sb, "date", "2013-03-14T21:12:05Z");
+        element(sb, "validity", String.valueOf(errorCount == 0));
+        sb.append("<m:result>\n<m:errors xml:lang=\"en\">\n");
+        element(sb, "errorcount", String.valueOf(errorCount));
+        if (errorCount > 0) {
+            sb.append("<m:errorlist>\n");
+            element(sb, "uri", uri);
+            for (int i = 0; i < errorCount; i++) {
+                sb.append("<m:error>\n");
+                element(sb, "line", String.valueOf(5 + i));
+                element(sb, "errortype", "parse-error");
+                element(sb, "context", " #content .sidebar ");
+                element(sb, "errorsubtype", "exp");
+                element(sb, "skippedstring", "progid:DXImageTransform.Microsoft.Alpha(opacity=80)");
+                element(sb, "message", "Parse Error");
+                sb.append("</m:error>\n");
+            }
+            sb.append("</m:errorlist>\n");
+        }
+        sb.append("</m:errors>\n<m:warnings xml:lang=\"en\">\n");
+        element(sb, "warningcount", String.valueOf(warningCount));
+        if (warningCount > 0) {
+            sb.append("<m:warninglist>\n");
+            element(sb, "uri", uri);
+            for (int i = 0; i < warningCount; i++) {
+                sb.append("<m:warning>\n");
+                element(sb, "line", String.valueOf(3 + i));
+                element(sb, "level", String.valueOf(i % 3));
+                element(sb, "message", "-moz-border-radius is an unknown vendor extension");
+                sb.append("</m:warning>\n");
+            }
+            sb.append("</m:warninglist>\n");
+        }
+        sb.append("</m:warnings>\n</m:result>\n</m:cssvalidationresponse>\n</env:Body>\n</env:Envelope>\n");
+        send(exchange, 200, SOAP_TYPE, sb.toString());
+    }
+
+    private void handlePage(HttpExchange exchange) throws IOException {
+        readRequest(exchange);
+        String path = exchange.getRequestURI().getPath().substring(SITE.length());
+        int page;
+        try {
+            if (!path.startsWith("p") || !path.endsWith(".html")) {
+                throw new NumberFormatException(path);
+            }
+            page = Integer.parseInt(path.substring(1, path.length() - ".html".length()));
+        } catch (NumberFormatException e) {
+            send(exchange, 404, "text/plain", "not found: " + path);
+            return;
+        }
+        int pageCount = pages;
+        if (page < 0 || page >= pageCount) {
+            send(exchange, 404, "text/plain", "not found: " + path);
+            return;
+        }
+        //the content only depends on these values
+        String etag = "\"p" + page + "-" + pageCount + "-" + links + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n");
+        sb.append("<html xmlns=\"http://www.w3.org/1999/xhtml\">\n<head><title>Page ").append(page).append("</title></head>\n<body>\n<ul>\n");
+        for (int i = 0; i < links; i++) {
+            //a fixed pseudo random graph that reaches every page from p0
+            int target = i == 0 ? (page + 1) % pageCount : (int) ((page * 31L + i * 17L) % pageCount);
+            sb.append("<li><a href=\"p").append(target).append(".html\">Page ").append(target).append("</a></li>\n");
+        }
+        sb.append("</ul>\n<p><a href=\"p0.html#top\">top</a> <a href=\"http://www.example.test/\">external</a> <a href=\"mailto:info@example.test\">mail</a></p>\n</body>\n</html>\n");
+        send(exchange, 200, "text/html; charset=utf-8", sb.toString());
+    }
+
+    /**
+     * Applies latency and failure injection to a validator request
+     * 
+     * @return <code>false</code> if the request was already answered
+     */
+    private boolean validatorRequest(HttpExchange exchange, Map<String, String> query) throws IOException {
+        requests.incrementAndGet();
+        int delay = latency;
+        int maxJitter = jitter;
+        if (maxJitter > 0) {
+            delay += random.nextInt(maxJitter + 1);
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+                return false;
+            }
+        }
+        double rate = failureRate;
+        if (rate > 0 && random.nextDouble() < rate) {
+            failures.incrementAndGet();
+            send(exchange, failureStatus, "text/plain", "injected failure");
+            return false;
+        }
+        if ("GET".equals(exchange.getRequestMethod()) && !"soap12".equals(query.get("output"))) {
+            send(exchange, 400, "text/plain", "only output=soap12 is supported");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the complete request, so the connection can be reused
+     * 
+     * @return the parameters of the query string
+     */
+    private static Map<String, String> readRequest(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        try {
+            byte[] buffer = new byte[8192];
+            while (body.read(buffer) >= 0) {
+                //uploads are not inspected
+            }
+        } finally {
+            body.close();
+        }
+        Map<String, String> query = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int index = pair.indexOf('=');
+                if (index > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static void element(StringBuilder sb, String name, String value) {
+        sb.append("<m:").append(name).append('>').append(value).append("</m:").append(name).append(">\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = utf8(body);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is a required encoding", e);
+        }
+    }
+
+    /**
+     * Starts a stub until the process is killed, the settings are given as
+     * <code>name=value</code> arguments: port, latency, jitter, errors,
+     * warnings, padding, failureRate, failureStatus, pages and links
+     * 
+     * @param args
+     * @throws IOException
+     *             if the server can't be started
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> settings = new HashMap<String, String>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index < 0) {
+                throw new IllegalArgumentException("settings must be given as name=value but was " + arg);
+            }
+            settings.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        ValidatorStub stub = new ValidatorStub(intSetting(settings, "port", 8080));
+        stub.setLatency(intSetting(settings, "latency", 0));
+        stub.setJitter(intSetting(settings, "jitter", 0));
+        stub.setErrors(intSetting(settings, "errors", 0));
+        stub.setWarnings(intSetting(settings, "warnings", 0));
+        stub.setPadding(intSetting(settings, "padding", 200));
+        stub.setFailureStatus(intSetting(settings, "failureStatus", 503));
+        stub.setPages(intSetting(settings, "pages", 1000));
+        stub.setLinks(intSetting(settings, "links", 50));
+        String failureRate = settings.remove("failureRate");
+        if (failureRate != null) {
+            stub.setFailureRate(Double.parseDouble(failureRate));
+        }
+        if (!settings.isEmpty()) {
+            throw new IllegalArgumentException("unknown settings " + settings.keySet());
+        }
+        stub.start();
+        System.out.println("markup validator: " + stub.getMarkupValidatorURL());
+        System.out.println("CSS validator:    " + stub.getCSSValidatorURL());
+        System.out.println("site:             " + stub.getPageURL(0));
+    }
+
+    private static int intSetting(Map<String, String> settings, String name, int defaultValue) {
+        String value = settings.remove(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,1196 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
+
+/**
+ * Base class for the validation tasks, holds the settings that are common to
+ * all of them
+ * 
+ * @author Christoph Läubrich
+ */
+public abstract class AbstractValidationTask extends Task {
+
+    /**
+     * Maximum number of (keep-alive) connections to a single host, this is
+     * shared by all tasks of the build
+     */
+    private int                                    maxConnectionsPerHost = 20;
+
+    /**
+     * Timeout in milliseconds until a connection is established, 0 means no
+     * timeout
+     */
+    private int                                    connectTimeout        = 30000;
+
+    /**
+     * Timeout in milliseconds for waiting for data, 0 means no timeout
+     */
+    private int                                    readTimeout           = 300000;
+
+    /**
+     * Directory to cache the results of file (and fragment) validations in,
+     * <code>null</code> disables the cache
+     */
+    private File                                   cacheDir;
+
+    /**
+     * Maximum number of results kept in the cache
+     */
+    private int                                    cacheSize             = 1000;
+
+    /**
+     * Number of requests that are sent concurrently when recursing or
+     * validating nested resource collections
+     */
+    private int                                    threads               = 1;
+
+    /**
+     * How the workers are run, <code>platform</code> for a fixed pool of
+     * {@link #threads} threads, <code>virtual</code> for a virtual thread per
+     * page or file (Java 21 and later)
+     */
+    private String                                 executor              = "platform";
+
+    private boolean                                virtualThreads;
+
+    /**
+     * Limits the connections per host if virtual threads are used, the
+     * connection pool must never block them
+     */
+    private final ConcurrentMap<String, Semaphore> hostPermits           = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * Nested resource collections of files to validate
+     */
+    private final List<ResourceCollection>         resources             = new ArrayList<ResourceCollection>();
+
+    /**
+     * Nested reports the results are written to
+     */
+    private final List<Report>                     reports               = new ArrayList<Report>();
+
+    /**
+     * The writers of the {@link #reports} while the task is executed
+     */
+    private final List<ReportWriter>               reportWriters         = new ArrayList<ReportWriter>();
+
+    /**
+     * Sustained number of requests per second sent to the validator, 0 means
+     * no limit, a negative value the default of the validator
+     */
+    private double                                 requestsPerSecond     = -1;
+
+    /**
+     * Number of requests that might be sent at once after a pause
+     */
+    private int                                    burst                 = 1;
+
+    /**
+     * Maximum number of requests to the validator in flight at the same time,
+     * 0 means no limit, a negative value the default of the validator
+     */
+    private int                                    maxInFlight           = -1;
+
+    /**
+     * Adjust the number of requests to the validator in flight to its
+     * latency, maxInFlight is the upper bound then
+     */
+    private boolean                                adaptiveInFlight;
+
+    /**
+     * How often a request to the validator is repeated if the validator is
+     * not reachable or answers with a temporary error
+     */
+    private int                                    retries               = 3;
+
+    /**
+     * The delay in milliseconds before the first retry, it is doubled for
+     * each further retry
+     */
+    private long                                   retryDelay            = 1000;
+
+    /**
+     * The upper bound in milliseconds for the delay before a retry
+     */
+    private long                                   maxRetryDelay         = 60000;
+
+    /**
+     * Percentage of failed requests to the validator after that all requests
+     * are paused, 0 means never
+     */
+    private int                                    failureThreshold      = 50;
+
+    /**
+     * How long in milliseconds requests are paused if the validator fails too
+     * often, before it is probed again
+     */
+    private long                                   failurePause          = 30000;
+
+    private ValidatorPool                          validatorPool;
+
+    private ResultCache                            resultCache;
+
+    /**
+     * The task this one validates documents for, or <code>null</code>
+     */
+    private AbstractValidationTask                 owner;
+
+    private final AtomicInteger                    cacheHits             = new AtomicInteger();
+
+    private final AtomicInteger                    cacheMisses           = new AtomicInteger();
+
+    /**
+     * Print the timings of the requests with {@link Project#MSG_INFO} level
+     * instead of {@link Project#MSG_VERBOSE} at the end
+     */
+    private boolean                                timingSummary;
+
+    /**
+     * The file the timings are exported to at the end or <code>null</code>
+     */
+    private File                                   timingFile;
+
+    /**
+     * <code>json</code> or <code>prometheus</code>
+     */
+    private String                                 timingFormat          = "json";
+
+    private Timings                                timings;
+
+    /**
+     * @param maxConnectionsPerHost
+     *            the new value for maxConnectionsPerHost
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * @param connectTimeout
+     *            the new value for connectTimeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param readTimeout
+     *            the new value for readTimeout
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @param cacheDir
+     *            the new value for cacheDir
+     */
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @param cacheSize
+     *            the new value for cacheSize
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @param requestsPerSecond
+     *            the new value for requestsPerSecond
+     */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * @param burst
+     *            the new value for burst
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * @param timingSummary
+     *            the new value for timingSummary
+     */
+    public void setTimingSummary(boolean timingSummary) {
+        this.timingSummary = timingSummary;
+    }
+
+    /**
+     * @param timingFile
+     *            the new value for timingFile
+     */
+    public void setTimingFile(File timingFile) {
+        this.timingFile = timingFile;
+    }
+
+    /**
+     * @param timingFormat
+     *            the new value for timingFormat
+     */
+    public void setTimingFormat(String timingFormat) {
+        this.timingFormat = timingFormat;
+    }
+
+    /**
+     * @param maxInFlight
+     *            the new value for maxInFlight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param adaptiveInFlight
+     *            the new value for adaptiveInFlight
+     */
+    public void setAdaptiveInFlight(boolean adaptiveInFlight) {
+        this.adaptiveInFlight = adaptiveInFlight;
+    }
+
+    /**
+     * @param retries
+     *            the new value for retries
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @param retryDelay
+     *            the new value for retryDelay in milliseconds
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @param maxRetryDelay
+     *            the new value for maxRetryDelay in milliseconds
+     */
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * @param failureThreshold
+     *            the new value for failureThreshold in percent
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @param failurePause
+     *            the new value for failurePause in milliseconds
+     */
+    public void setFailurePause(long failurePause) {
+        this.failurePause = failurePause;
+    }
+
+    /**
+     * @param threads
+     *            the new value for threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param executor
+     *            the new value for executor
+     */
+    public void setExecutor(String executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Add a nested resource collection (e.g. a fileset) of files to validate
+     * 
+     * @param collection
+     */
+    public void add(ResourceCollection collection) {
+        resources.add(collection);
+    }
+
+    /**
+     * Add a nested report the results are written to while they arrive, e.g.
+     * <code>&lt;report format="junit" file="build/markup.xml"/&gt;</code>
+     * 
+     * @param report
+     */
+    public void addConfiguredReport(Report report) {
+        if (report.getFile() == null) {
+            throw new BuildException("a report needs a file");
+        }
+        reports.add(report);
+    }
+
+    /**
+     * Lets this task validate documents found by the given task: the settings
+     * for connections, threads, rate limit and cache are taken from it, and
+     * documents are written to its reports
+     * 
+     * @param owner
+     */
+    void inheritSettings(AbstractValidationTask owner) {
+        bindToOwner(owner);
+        this.owner = owner;
+        maxConnectionsPerHost = owner.maxConnectionsPerHost;
+        connectTimeout = owner.connectTimeout;
+        readTimeout = owner.readTimeout;
+        cacheDir = owner.cacheDir;
+        cacheSize = owner.cacheSize;
+        threads = owner.threads;
+        executor = owner.executor;
+        requestsPerSecond = owner.requestsPerSecond;
+        burst = owner.burst;
+        maxInFlight = owner.maxInFlight;
+        adaptiveInFlight = owner.adaptiveInFlight;
+        retries = owner.retries;
+        retryDelay = owner.retryDelay;
+        maxRetryDelay = owner.maxRetryDelay;
+        failureThreshold = owner.failureThreshold;
+        failurePause = owner.failurePause;
+    }
+
+    /**
+     * @return <code>true</code> if nested resource collections were given
+     */
+    protected boolean hasResources() {
+        return !resources.isEmpty();
+    }
+
+    /**
+     * Collects the files of all nested resource collections
+     * 
+     * @return the files in the order of the collections
+     * @throws BuildException
+     *             if a resource is not a file
+     */
+    protected List<File> collectFiles() throws BuildException {
+        List<File> files = new ArrayList<File>();
+        for (ResourceCollection collection : resources) {
+            for (Iterator<?> iterator = collection.iterator(); iterator.hasNext();) {
+                Resource resource = (Resource) iterator.next();
+                FileProvider provider = (FileProvider) resource.as(FileProvider.class);
+                if (provider == null) {
+                    throw new BuildException("only file resources can be validated, but got " + resource);
+                }
+                files.add(provider.getFile());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the number of worker threads to use
+     * 
+     * @param publicValidator
+     *            <code>true</code> if the public service of the W3C is used,
+     *            that must not be used with more than one thread
+     * @return the number of worker threads
+     * @throws BuildException
+     *             if the threads setting is invalid
+     */
+    protected int workerThreads(boolean publicValidator) throws BuildException {
+        if (threads < 1) {
+            throw new BuildException("threads must be at least 1 but was " + threads);
+        }
+        if (threads > 1 && publicValidator) {
+            log("The public validator must not be used with more than one thread, threads = " + threads + " is ignored", Project.MSG_WARN);
+            return 1;
+        }
+        return threads;
+    }
+
+    /**
+     * Validates the executor setting, virtual threads fall back to platform
+     * threads if the JVM does not support them
+     * 
+     * @throws BuildException
+     *             if the setting is invalid
+     */
+    protected void configureExecutor() throws BuildException {
+        hostPermits.clear();
+        if ("platform".equals(executor)) {
+            virtualThreads = false;
+        } else if ("virtual".equals(executor)) {
+            ExecutorService probe = WorkerThreadFactory.newVirtualThreadExecutor(getTaskName());
+            virtualThreads = probe != null;
+            if (probe != null) {
+                probe.shutdown();
+            } else {
+                log("Virtual threads are not supported by this JVM, " + threads + " platform threads are used", Project.MSG_WARN);
+            }
+        } else {
+            throw new BuildException("executor must be 'platform' or 'virtual' but was " + executor);
+        }
+    }
+
+    /**
+     * Creates the executor for workers as configured by {@link #executor}
+     * 
+     * @param name
+     *            the name of the threads
+     * @param workers
+     *            the number of platform threads, with virtual threads the
+     *            caller must limit the number of submitted tasks
+     * @return the executor
+     */
+    ExecutorService newExecutor(String name, int workers) {
+        if (virtualThreads) {
+            ExecutorService virtualExecutor = WorkerThreadFactory.newVirtualThreadExecutor(name);
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, workers), new WorkerThreadFactory(name));
+    }
+
+    /**
+     * Waits until a connection to the host of the given URL might be opened,
+     * this only limits virtual threads, every call must be followed by a call
+     * to {@link #releaseConnection(URL)}
+     * 
+     * @param url
+     * @throws InterruptedIOException
+     *             if the thread was interrupted while waiting
+     */
+    protected void acquireConnection(URL url) throws InterruptedIOException {
+        if (!virtualThreads || url == null) {
+            return;
+        }
+        Semaphore permits = hostPermits.get(hostKey(url));
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+            permits = hostPermits.putIfAbsent(hostKey(url), newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a connection to " + url.getHost());
+        }
+    }
+
+    /**
+     * Marks a connection to the host of the given URL as closed
+     * 
+     * @param url
+     */
+    protected void releaseConnection(URL url) {
+        if (!virtualThreads || url == null) {
+            return;
+        }
+        hostPermits.get(hostKey(url)).release();
+    }
+
+    private static String hostKey(URL url) {
+        int port = url.getPort();
+        return url.getHost().toLowerCase(Locale.ENGLISH) + ':' + (port != -1 ? port : url.getDefaultPort());
+    }
+
+    /**
+     * Validates the connection settings and applies them to the shared
+     * connection pool, must be called before any request is executed
+     * 
+     * @throws BuildException
+     *             if a setting is invalid
+     */
+    protected void configureConnections() throws BuildException {
+        if (maxConnectionsPerHost < 1) {
+            throw new BuildException("maxConnectionsPerHost must be at least 1 but was " + maxConnectionsPerHost);
+        }
+        if (connectTimeout < 0 || readTimeout < 0) {
+            throw new BuildException("timeouts must not be negative");
+        }
+        Tools.configureConnections(maxConnectionsPerHost, connectTimeout);
+    }
+
+    /**
+     * Validates the rate limit settings and applies them to the limiter of each
+     * of the given validators, must be called before {@link #acquirePermit()}
+     * is used. The public validators of the W3C are never asked more than once
+     * per second and only with one request at a time, other validators are not
+     * limited unless configured. The settings for retries and the circuit
+     * breaker of each validator are applied as well.
+     * 
+     * @param validators
+     *            the URL of the validator, or the URLs of several equivalent
+     *            validators separated by commas
+     * @param publicValidator
+     *            the URL of the public service of the W3C
+     * @throws BuildException
+     *             if a setting is invalid
+     */
+    protected void configureRateLimit(String validators, String publicValidator) throws BuildException {
+        if (burst < 1) {
+            throw new BuildException("burst must be at least 1 but was " + burst);
+        }
+        if (retries < 0) {
+            throw new BuildException("retries must not be negative but was " + retries);
+        }
+        if (retryDelay < 0 || maxRetryDelay < retryDelay) {
+            throw new BuildException("retryDelay must not be negative and not greater than maxRetryDelay");
+        }
+        if (failureThreshold < 0 || failureThreshold > 100) {
+            throw new BuildException("failureThreshold must be a percentage between 0 and 100 but was " + failureThreshold);
+        }
+        if (failurePause < 0) {
+            throw new BuildException("failurePause must not be negative but was " + failurePause);
+        }
+        List<ValidatorPool.Endpoint> endpoints = new ArrayList<ValidatorPool.Endpoint>();
+        for (String validator : ValidatorPool.parse(validators)) {
+            boolean publicEndpoint = validator.equals(publicValidator);
+            double rate = requestsPerSecond;
+            if (rate < 0) {
+                rate = publicEndpoint ? 1 : 0;
+            } else if (publicEndpoint && (rate == 0 || rate > 1)) {
+                log("The public validator must not be asked more than once per second, requestsPerSecond = " + requestsPerSecond + " is ignored", Project.MSG_WARN);
+                rate = 1;
+            }
+            int endpointBurst = burst;
+            if (publicEndpoint && endpointBurst > 1) {
+                log("The public validator must not be asked more than once per second, burst = " + burst + " is ignored", Project.MSG_WARN);
+                endpointBurst = 1;
+            }
+            int inFlight = maxInFlight;
+            if (inFlight < 0) {
+                inFlight = publicEndpoint ? 1 : 0;
+            } else if (publicEndpoint && inFlight != 1) {
+                log("The public validator must not be asked with more than one request at a time, maxInFlight = " + maxInFlight + " is ignored", Project.MSG_WARN);
+                inFlight = 1;
+            }
+            AdaptiveLimit adaptiveLimit = null;
+            if (adaptiveInFlight && publicEndpoint) {
+                log("The public validator must not be asked with more than one request at a time, adaptiveInFlight is ignored", Project.MSG_WARN);
+            } else if (adaptiveInFlight) {
+                adaptiveLimit = AdaptiveLimit.get(validator, inFlight);
+            }
+            RateLimiter limiter = RateLimiter.get(validator, rate, endpointBurst, adaptiveLimit != null ? adaptiveLimit.getLimit() : inFlight);
+            endpoints.add(new ValidatorPool.Endpoint(validator, limiter, CircuitBreaker.get(validator, failureThreshold, failurePause), adaptiveLimit));
+            log("Rate limit for " + validator + ": requestsPerSecond = " + rate + ", burst = " + endpointBurst + ", maxInFlight = " + inFlight + (adaptiveLimit != null ? " (adaptive)" : ""), Project.MSG_DEBUG);
+        }
+        if (endpoints.isEmpty()) {
+            throw new BuildException("at least one validator must be given");
+        }
+        validatorPool = new ValidatorPool(endpoints);
+    }
+
+    /**
+     * Waits until the rate limit of one of the validators allows to send the
+     * next request (and a connection to it might be opened), every call must
+     * be followed by a call to {@link #releasePermit(ValidatorPool.Lease)}
+     * once the response was read
+     * 
+     * @return the lease with the validator to send the request to
+     * @throws InterruptedIOException
+     *             if the thread was interrupted while waiting
+     */
+    protected ValidatorPool.Lease acquirePermit() throws InterruptedIOException {
+        long start = System.nanoTime();
+        ValidatorPool.Lease lease;
+        try {
+            lease = validatorPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rate limit");
+        }
+        try {
+            acquireConnection(lease.getEndpoint().getParsedURL());
+        } catch (InterruptedIOException e) {
+            validatorPool.release(lease);
+            throw e;
+        }
+        recordTiming(Timings.Phase.WAIT, lease.getEndpoint().getUrl(), System.nanoTime() - start, 0);
+        return lease;
+    }
+
+    /**
+     * Marks a request to the validator as finished, nothing happens if the
+     * lease was released already because waiting for a retry was interrupted
+     * 
+     * @param lease
+     */
+    protected void releasePermit(ValidatorPool.Lease lease) {
+        if (!lease.isHeld()) {
+            return;
+        }
+        ValidatorPool.Endpoint endpoint = lease.getEndpoint();
+        releaseConnection(endpoint.getParsedURL());
+        logBreaker(endpoint, validatorPool.release(lease));
+        AdaptiveLimit adaptiveLimit = endpoint.getAdaptiveLimit();
+        if (adaptiveLimit != null && adaptiveLimit.shouldLog()) {
+            log("Concurrency limit for " + endpoint.getUrl() + ": " + adaptiveLimit.describe(), Project.MSG_INFO);
+        }
+    }
+
+    /**
+     * Opens the result cache if one is configured, must be called before any
+     * other of the cache methods are used
+     * 
+     * @throws BuildException
+     *             if the cache can't be used
+     */
+    protected void configureCache() throws BuildException {
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        if (cacheDir == null) {
+            resultCache = null;
+            return;
+        }
+        if (cacheSize < 1) {
+            throw new BuildException("cacheSize must be at least 1 but was " + cacheSize);
+        }
+        try {
+            resultCache = ResultCache.get(cacheDir, cacheSize);
+        } catch (IOException e) {
+            throw new BuildException("can't use cache directory " + cacheDir, e);
+        }
+    }
+
+    /**
+     * @return a builder for cache keys or <code>null</code> if no cache is
+     *         configured
+     */
+    protected ResultCache.KeyBuilder cacheKey() {
+        if (resultCache == null) {
+            return null;
+        }
+        return ResultCache.key().add(getClass().getName());
+    }
+
+    /**
+     * @return the configured result cache or <code>null</code>
+     */
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Reads a cached response with the given reader
+     * 
+     * @param reader
+     *            the reader to use
+     * @param key
+     *            the key of the response, or <code>null</code> if the response
+     *            can't be cached
+     * @return the value of {@link ResponseReader#read(InputStream)} for the
+     *         cached response, or <code>null</code> if nothing is cached and
+     *         the validator must be asked
+     * @throws XMLStreamException
+     * @throws JAXBException
+     * @throws IOException
+     */
+    protected Boolean readCached(ResponseReader reader, String key) throws XMLStreamException, JAXBException, IOException {
+        if (key == null) {
+            return null;
+        }
+        Boolean result = readCached(reader, resultCache, key);
+        if (result == null) {
+            cacheMisses.incrementAndGet();
+        } else {
+            cacheHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Reads a response from the given cache with the given reader
+     * 
+     * @param reader
+     *            the reader to use
+     * @param cache
+     *            the cache to read from
+     * @param key
+     *            the key of the response
+     * @return the value of {@link ResponseReader#read(InputStream)} for the
+     *         cached response, or <code>null</code> if nothing is cached
+     * @throws XMLStreamException
+     * @throws JAXBException
+     * @throws IOException
+     */
+    Boolean readCached(ResponseReader reader, ResultCache cache, String key) throws XMLStreamException, JAXBException, IOException {
+        InputStream stream = cache.open(key);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return reader.read(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads a fresh response from the validator with the given reader, and
+     * stores it in the cache if a key is given
+     * 
+     * @param reader
+     *            the reader to use
+     * @param response
+     *            the response of the validator
+     * @param key
+     *            the key of the response, or <code>null</code> if the response
+     *            can't be cached
+     * @return the value of {@link ResponseReader#read(InputStream)}
+     * @throws XMLStreamException
+     * @throws JAXBException
+     * @throws IOException
+     */
+    protected boolean readResponse(ResponseReader reader, InputStream response, String key) throws XMLStreamException, JAXBException, IOException {
+        if (key == null) {
+            return reader.read(response);
+        }
+        return readResponse(reader, response, resultCache, key);
+    }
+
+    /**
+     * Reads a fresh response from the validator with the given reader, and
+     * stores it in the given cache
+     * 
+     * @param reader
+     *            the reader to use
+     * @param response
+     *            the response of the validator
+     * @param cache
+     *            the cache to store the response in
+     * @param key
+     *            the key of the response
+     * @return the value of {@link ResponseReader#read(InputStream)}
+     * @throws XMLStreamException
+     * @throws JAXBException
+     * @throws IOException
+     */
+    boolean readResponse(ResponseReader reader, InputStream response, ResultCache cache, String key) throws XMLStreamException, JAXBException, IOException {
+        ResultCache.Recorder recorder = cache.record(key, response);
+        try {
+            boolean result;
+            try {
+                result = reader.read(recorder);
+            } catch (BuildException e) {
+                //the response was complete but the document is invalid, this is worth caching as well
+                recorder.commit();
+                throw e;
+            }
+            recorder.commit();
+            return result;
+        } finally {
+            recorder.discard();
+        }
+    }
+
+    /**
+     * Creates the files of the nested reports, must be paired with a call to
+     * {@link #closeReports(boolean)}
+     * 
+     * @throws BuildException
+     *             if a format is unknown or a file can't be created
+     */
+    protected void openReports() throws BuildException {
+        for (Report report : reports) {
+            try {
+                reportWriters.add(ReportWriter.open(report, getTaskName()));
+            } catch (IllegalArgumentException e) {
+                closeReports(false);
+                throw new BuildException(e.getMessage());
+            } catch (IOException e) {
+                closeReports(false);
+                throw new BuildException("can't create " + report, e);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the results are written to any report (of
+     *         this task or the task it validates documents for), so documents
+     *         should be collected
+     */
+    boolean hasReports() {
+        if (owner != null) {
+            return owner.hasReports();
+        }
+        return !reportWriters.isEmpty();
+    }
+
+    /**
+     * Writes the given document to all reports
+     * 
+     * @param document
+     * @throws BuildException
+     *             if a report can't be written
+     */
+    synchronized void report(ReportWriter.Document document) throws BuildException {
+        for (int i = 0; i < reportWriters.size(); i++) {
+            try {
+                reportWriters.get(i).write(document);
+            } catch (IOException e) {
+                throw new BuildException("can't write " + reports.get(i), e);
+            }
+        }
+    }
+
+    /**
+     * Completes all reports, the documents reported so far are kept if the
+     * task failed
+     * 
+     * @param complete
+     *            <code>true</code> if the task finished, otherwise a problem
+     *            is only logged so it does not hide the reason of the failure
+     * @throws BuildException
+     *             if a report can't be written and the task finished
+     */
+    protected synchronized void closeReports(boolean complete) throws BuildException {
+        IOException failure = null;
+        Report failed = null;
+        for (int i = 0; i < reportWriters.size(); i++) {
+            try {
+                reportWriters.get(i).close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                    failed = reports.get(i);
+                }
+            }
+        }
+        reportWriters.clear();
+        if (failure != null) {
+            if (complete) {
+                throw new BuildException("can't write " + failed, failure);
+            }
+            log("can't write " + failed + ": " + failure, Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * Starts to collect the timings of the requests, must be called before any
+     * request is executed
+     * 
+     * @throws BuildException
+     *             if the format of the timing file is unknown
+     */
+    protected void configureTimings() throws BuildException {
+        if (!"json".equals(timingFormat) && !"prometheus".equals(timingFormat)) {
+            throw new BuildException("timingFormat must be 'json' or 'prometheus' but was " + timingFormat);
+        }
+        timings = new Timings();
+    }
+
+    /**
+     * @return the timings of the requests, the ones of the owner if this task
+     *         validates documents for another one
+     */
+    Timings getTimings() {
+        if (owner != null) {
+            return owner.getTimings();
+        }
+        return timings;
+    }
+
+    /**
+     * Records the duration of a phase of a request
+     * 
+     * @param phase
+     * @param endpoint
+     *            the validator endpoint or <code>null</code>
+     * @param nanos
+     *            the duration
+     * @param bytes
+     *            the number of bytes transferred
+     */
+    void recordTiming(Timings.Phase phase, String endpoint, long nanos, long bytes) {
+        Timings current = getTimings();
+        if (current != null) {
+            current.record(phase, endpoint, nanos, bytes);
+        }
+    }
+
+    /**
+     * Logs the summary of the timings and writes them to the
+     * {@link #timingFile}, if one is given
+     * 
+     * @param complete
+     *            <code>false</code> if the task failed, a file that can't be
+     *            written is only a warning then
+     * @throws BuildException
+     *             if the file can't be written
+     */
+    protected void logTimings(boolean complete) throws BuildException {
+        if (timings == null) {
+            return;
+        }
+        int level = timingSummary ? Project.MSG_INFO : Project.MSG_VERBOSE;
+        List<String> summary = timings.summary();
+        if (!summary.isEmpty()) {
+            log("Timings:", level);
+            for (String line : summary) {
+                log("  " + line, level);
+            }
+        }
+        if (timingFile != null) {
+            try {
+                timings.write(timingFile, timingFormat, getTaskName());
+            } catch (IOException e) {
+                if (complete) {
+                    throw new BuildException("can't write timings to " + timingFile, e);
+                }
+                log("can't write timings to " + timingFile + ": " + e, Project.MSG_WARN);
+            }
+        }
+    }
+
+    /**
+     * Logs the number of cache hits and misses, if a cache is configured
+     */
+    protected void logCacheStatistics() {
+        if (resultCache != null) {
+            log("Result cache: " + cacheHits.get() + " hits, " + cacheMisses.get() + " misses", Project.MSG_INFO);
+        }
+    }
+
+    /**
+     * Sends a request to the validator of the given lease. If the validator is
+     * not reachable or answers with a temporary error (429 or 5xx) the request
+     * is repeated up to {@link #retries} times, after a delay that grows
+     * exponentially (with some jitter, so workers don't retry in lockstep) or
+     * the delay the validator asked for with a <code>Retry-After</code>
+     * header. If several validators are given a retry is sent to another one,
+     * the lease is switched then.
+     * 
+     * @param method
+     *            the method to execute, it must be repeatable
+     * @param lease
+     *            the lease returned by {@link #acquirePermit()}
+     * @return the executed method to read the response from, it must be
+     *         released afterwards
+     * @throws IOException
+     *             if the validator was not reachable on the last attempt
+     * @throws BuildException
+     *             if the validator did not answer with <code>200 OK</code>
+     */
+    protected HttpMethodBase send(HttpMethodBase method, ValidatorPool.Lease lease) throws IOException, BuildException {
+        Timings.TimedEntity upload = null;
+        if (method instanceof EntityEnclosingMethod) {
+            EntityEnclosingMethod enclosing = (EntityEnclosingMethod) method;
+            if (enclosing.getRequestEntity() instanceof MultipartRequestEntity) {
+                upload = new Timings.TimedEntity(enclosing.getRequestEntity());
+                enclosing.setRequestEntity(upload);
+            }
+        }
+        for (int attempt = 0;; attempt++) {
+            if (attempt > 0) {
+                //the same parameters, but possibly another validator
+                String query = method.getQueryString();
+                method.setURI(new URI(lease.getEndpoint().getUrl(), true));
+                method.setQueryString(query);
+            }
+            int result;
+            long start = System.nanoTime();
+            try {
+                try {
+                    result = executeMethod(method);
+                } finally {
+                    recordAttempt(lease.getEndpoint().getUrl(), System.nanoTime() - start, upload);
+                }
+            } catch (IOException e) {
+                lease.executed(true);
+                method.releaseConnection();
+                //a timeout is an InterruptedIOException too, but only an interrupt should stop retrying
+                if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                retry(lease, attempt, null, e.toString());
+                continue;
+            }
+            boolean temporary = result == 429 || result >= 500;
+            lease.executed(temporary);
+            if (result == HttpStatus.SC_OK) {
+                return method;
+            }
+            Header retryAfter = method.getResponseHeader("Retry-After");
+            method.releaseConnection();
+            if (!temporary || attempt >= retries) {
+                throw new BuildException("Server returned " + result + " " + method.getStatusText());
+            }
+            retry(lease, attempt, retryAfter, result + " " + method.getStatusText());
+        }
+    }
+
+    /**
+     * Records the timing of a single attempt to send a request, the time to
+     * upload the body is not counted as time of the validator
+     * 
+     * @param endpoint
+     * @param nanos
+     *            the time until the response headers arrived
+     * @param upload
+     *            the body of the request or <code>null</code>
+     */
+    private void recordAttempt(String endpoint, long nanos, Timings.TimedEntity upload) {
+        long uploadNanos = upload != null ? upload.takeNanos() : -1;
+        if (uploadNanos >= 0) {
+            recordTiming(Timings.Phase.UPLOAD, endpoint, uploadNanos, upload.getContentLength());
+            nanos -= uploadNanos;
+        }
+        recordTiming(Timings.Phase.VALIDATOR, endpoint, nanos, 0);
+    }
+
+    private void logBreaker(ValidatorPool.Endpoint endpoint, CircuitBreaker.State state) {
+        if (state == CircuitBreaker.State.OPEN) {
+            log(endpoint.getBreaker().getFailureRate() + "% of the last " + CircuitBreaker.WINDOW + " requests to " + endpoint.getUrl() + " failed, its requests are paused for " + failurePause + " ms", Project.MSG_WARN);
+        } else if (state == CircuitBreaker.State.CLOSED) {
+            log(endpoint.getUrl() + " answers again, its requests are resumed", Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * Releases the lease of a failed attempt, waits before the next attempt
+     * and acquires the lease again
+     * 
+     * @param lease
+     * @param attempt
+     *            the number of the failed attempt, starting with 0
+     * @param retryAfter
+     *            the <code>Retry-After</code> header of the response or
+     *            <code>null</code>
+     * @param reason
+     *            why the attempt failed
+     * @throws InterruptedIOException
+     */
+    private void retry(ValidatorPool.Lease lease, int attempt, Header retryAfter, String reason) throws InterruptedIOException {
+        long start = System.nanoTime();
+        ValidatorPool.Endpoint failed = lease.getEndpoint();
+        releasePermit(lease);
+        awaitRetry(failed, attempt, retryAfter, reason);
+        try {
+            validatorPool.reacquire(lease);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rate limit");
+        }
+        try {
+            acquireConnection(lease.getEndpoint().getParsedURL());
+        } catch (InterruptedIOException e) {
+            validatorPool.release(lease);
+            throw e;
+        }
+        recordTiming(Timings.Phase.WAIT, lease.getEndpoint().getUrl(), System.nanoTime() - start, 0);
+    }
+
+    /**
+     * Sleeps before the next attempt of a request
+     * 
+     * @param endpoint
+     *            the validator that failed
+     * @param attempt
+     *            the number of the failed attempt, starting with 0
+     * @param retryAfter
+     *            the <code>Retry-After</code> header of the response or
+     *            <code>null</code>
+     * @param reason
+     *            why the attempt failed
+     * @throws InterruptedIOException
+     */
+    private void awaitRetry(ValidatorPool.Endpoint endpoint, int attempt, Header retryAfter, String reason) throws InterruptedIOException {
+        //the cap also keeps the shift from overflowing
+        long delay = attempt < 30 ? Math.min(maxRetryDelay, retryDelay << attempt) : maxRetryDelay;
+        delay = delay / 2 + (long) (Math.random() * (delay / 2 + 1));
+        if (retryAfter != null) {
+            String value = retryAfter.getValue().trim();
+            try {
+                delay = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                try {
+                    delay = DateUtil.parseDate(value).getTime() - System.currentTimeMillis();
+                } catch (DateParseException e1) {
+                    //keep the computed delay
+                }
+            }
+            delay = Math.max(0, Math.min(maxRetryDelay, delay));
+        }
+        log("Request to " + endpoint.getUrl() + " failed (" + reason + "), retry " + (attempt + 1) + " of " + retries + " in " + delay + " ms", Project.MSG_WARN);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to retry a request");
+        }
+    }
+
+    /**
+     * Executes the given method with the shared client. The caller is
+     * responsible to call {@link HttpMethodBase#releaseConnection()} once the
+     * response was consumed, so the connection can be reused.
+     * 
+     * @param method
+     *            the method to execute
+     * @return the HTTP status code
+     * @throws IOException
+     *             if unrecoverable communication error occurs
+     */
+    protected int executeMethod(HttpMethodBase method) throws IOException {
+        method.getParams().setSoTimeout(readTimeout);
+        return Tools.getHttpClient().executeMethod(method);
+    }
+}
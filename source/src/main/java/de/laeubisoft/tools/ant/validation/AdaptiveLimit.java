@@ -0,0 +1,236 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds the number of requests a validator endpoint can handle at the same
+ * time from the latency of its responses. A moving average of the latency
+ * under the current load is compared with the latency without load (the lowest
+ * one seen, that slowly follows the average so it adapts when the load of the
+ * server shifts). While the current latency stays within {@link #TOLERANCE} of
+ * the one without load the limit grows by about its square root per round
+ * trip, once the latency climbs the limit is scaled down by their ratio (but at
+ * most halved), a failed request shrinks it by {@link #BACKOFF}. The limit is
+ * decreased at most once per round trip, as the requests sent before the
+ * decrease still report the old load. The limit only grows if it is actually
+ * used, otherwise a crawl with few pages would raise it without any evidence.
+ * 
+ * @author Christoph Läubrich
+ */
+final class AdaptiveLimit {
+
+    /**
+     * The limit a new endpoint starts with
+     */
+    private static final int                                  INITIAL      = 4;
+
+    /**
+     * How much higher than the latency without load the current latency might
+     * be before the limit shrinks
+     */
+    private static final double                               TOLERANCE    = 1.5;
+
+    /**
+     * The factor the limit is multiplied with after a failed request
+     */
+    private static final double                               BACKOFF      = 0.9;
+
+    /**
+     * Weight of a new sample in the moving average of the latency
+     */
+    private static final double                               DECAY        = 0.1;
+
+    /**
+     * Weight of the moving average in the latency without load, per request
+     */
+    private static final double                               DRIFT        = 0.01;
+
+    private static final long                                 LOG_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private static final ConcurrentMap<String, AdaptiveLimit> LIMITS       = new ConcurrentHashMap<String, AdaptiveLimit>();
+
+    private final Lock                                        lock         = new ReentrantLock();
+
+    private double                                            limit        = INITIAL;
+
+    /**
+     * The upper bound of the limit, <code>0</code> if not bounded
+     */
+    private int                                               maxLimit;
+
+    /**
+     * Moving average of the latency in nanoseconds
+     */
+    private double                                            latency;
+
+    /**
+     * The latency without load in nanoseconds
+     */
+    private double                                            noLoadLatency;
+
+    private long                                              lastDecrease;
+
+    private int                                               loggedLimit;
+
+    private long                                              lastLog;
+
+    private AdaptiveLimit() {
+    }
+
+    /**
+     * Returns the limit for the given endpoint, all tasks using the same
+     * endpoint share one instance, the settings of the last call apply
+     * 
+     * @param endpoint
+     *            the URL of the validator
+     * @param maxLimit
+     *            the upper bound of the limit, <code>0</code> for no bound
+     * @return the limit
+     */
+    static AdaptiveLimit get(String endpoint, int maxLimit) {
+        AdaptiveLimit limit = LIMITS.get(endpoint);
+        if (limit == null) {
+            AdaptiveLimit newLimit = new AdaptiveLimit();
+            limit = LIMITS.putIfAbsent(endpoint, newLimit);
+            if (limit == null) {
+                limit = newLimit;
+            }
+        }
+        limit.configure(maxLimit);
+        return limit;
+    }
+
+    private void configure(int maxLimit) {
+        lock.lock();
+        try {
+            this.maxLimit = maxLimit;
+            limit = bound(limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current number of requests that might be in flight, at
+     *         least <code>1</code>
+     */
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adjusts the limit with the outcome of a request
+     * 
+     * @param latencyNanos
+     *            the time it took to get the response
+     * @param failed
+     *            <code>true</code> if the endpoint failed to answer
+     * @param inFlight
+     *            the number of requests in flight when it was sent (including
+     *            itself)
+     * @return <code>true</code> if {@link #getLimit()} changed
+     */
+    boolean record(long latencyNanos, boolean failed, int inFlight) {
+        lock.lock();
+        try {
+            int before = (int) limit;
+            if (!failed) {
+                if (noLoadLatency == 0) {
+                    latency = latencyNanos;
+                    noLoadLatency = latencyNanos;
+                } else {
+                    latency += DECAY * (latencyNanos - latency);
+                    if (inFlight <= 1) {
+                        //nothing else was in flight, so this is the latency without load
+                        noLoadLatency += DECAY * (latencyNanos - noLoadLatency);
+                    } else {
+                        noLoadLatency = Math.min(latencyNanos, noLoadLatency + DRIFT * (latency - noLoadLatency));
+                    }
+                }
+            }
+            double gradient = failed ? BACKOFF : Math.max(0.5, Math.min(1, TOLERANCE * noLoadLatency / latency));
+            if (gradient < 1) {
+                long now = System.nanoTime();
+                if (now - lastDecrease > 2 * latency) {
+                    lastDecrease = now;
+                    limit = bound(limit * gradient);
+                }
+            } else if (inFlight >= limit / 2) {
+                limit = bound(limit + 1 / Math.sqrt(limit));
+            }
+            return (int) limit != before;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells if the limit should be logged: it changed since it was logged the
+     * last time, and that was at least ten seconds ago. Only one caller gets
+     * <code>true</code> for a change.
+     * 
+     * @return <code>true</code> if the limit should be logged now
+     */
+    boolean shouldLog() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if ((int) limit == loggedLimit || lastLog != 0 && now - lastLog < LOG_INTERVAL) {
+                return false;
+            }
+            loggedLimit = (int) limit;
+            lastLog = now;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a description of the limit and the observed latencies for the
+     *         log
+     */
+    String describe() {
+        lock.lock();
+        try {
+            return (int) limit + " requests in flight (latency " + TimeUnit.NANOSECONDS.toMillis((long) latency) + " ms, without load " + TimeUnit.NANOSECONDS.toMillis((long) noLoadLatency) + " ms)";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double bound(double value) {
+        if (maxLimit > 0 && value > maxLimit) {
+            return maxLimit;
+        }
+        return Math.max(1, value);
+    }
+}
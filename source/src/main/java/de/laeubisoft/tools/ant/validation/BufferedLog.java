@@ -0,0 +1,148 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Collects the log messages produced while validating a single document, so
+ * they can be written to the build log later on (and in a deterministic order)
+ * even if the validation was performed by a worker thread. The documents for
+ * the reports of the task are collected in the same order.
+ * 
+ * @author Christoph Läubrich
+ */
+class BufferedLog {
+
+    private final AbstractValidationTask target;
+
+    /**
+     * Messages and {@link ReportWriter.Document}s in the order they were added
+     */
+    private final List<Object>           messages = new ArrayList<Object>();
+
+    /**
+     * The levels of the messages, <code>null</code> for documents
+     */
+    private final List<Integer>          levels   = new ArrayList<Integer>();
+
+    /**
+     * Creates a log that buffers all messages until
+     * {@link #replay(AbstractValidationTask)} is called
+     */
+    BufferedLog() {
+        this(null);
+    }
+
+    /**
+     * Creates a log that directly forwards all messages to the given task, or
+     * buffers them if <code>target</code> is <code>null</code>
+     * 
+     * @param target
+     */
+    BufferedLog(AbstractValidationTask target) {
+        this.target = target;
+    }
+
+    /**
+     * Log a message with {@link Project#MSG_INFO} level
+     * 
+     * @param message
+     */
+    void log(String message) {
+        log(message, Project.MSG_INFO);
+    }
+
+    /**
+     * Log a message with the given level
+     * 
+     * @param message
+     * @param level
+     */
+    void log(String message, int level) {
+        if (target != null) {
+            target.log(message, level);
+        } else {
+            messages.add(message);
+            levels.add(level);
+        }
+    }
+
+    /**
+     * Adds a validated document to the reports of the task, if it has any
+     * 
+     * @param document
+     * @throws org.apache.tools.ant.BuildException
+     *             if the document is written directly and that fails
+     */
+    void report(ReportWriter.Document document) {
+        if (target != null) {
+            target.report(document);
+        } else {
+            messages.add(document);
+            levels.add(null);
+        }
+    }
+
+    /**
+     * Writes all buffered messages and documents to the given task and clears
+     * the buffer
+     * 
+     * @param task
+     * @throws org.apache.tools.ant.BuildException
+     *             if a document can't be written to the reports
+     */
+    void replay(AbstractValidationTask task) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages.size(); i++) {
+            Integer level = levels.get(i);
+            if (level == null) {
+                task.report((ReportWriter.Document) messages.get(i));
+            } else {
+                task.log((String) messages.get(i), level);
+            }
+        }
+        messages.clear();
+        levels.clear();
+        task.recordTiming(Timings.Phase.LOG, null, System.nanoTime() - start, 0);
+    }
+
+    /**
+     * Writes all buffered messages and documents to the given log and clears
+     * the buffer
+     * 
+     * @param log
+     */
+    void replay(BufferedLog log) {
+        for (int i = 0; i < messages.size(); i++) {
+            Integer level = levels.get(i);
+            if (level == null) {
+                log.report((ReportWriter.Document) messages.get(i));
+            } else {
+                log.log((String) messages.get(i), level);
+            }
+        }
+        messages.clear();
+        levels.clear();
+    }
+}
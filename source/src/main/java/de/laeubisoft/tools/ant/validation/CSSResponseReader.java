@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.w3.css.validator.CSSValidationResponse;
+import org.w3.css.validator.Error;
+import org.w3.css.validator.ObjectFactory;
+import org.w3.css.validator.Result;
+import org.w3.css.validator.ValidationErrors;
+import org.w3.css.validator.ValidationWarnings;
+import org.w3.css.validator.Warning;
+
+/**
+ * Reads the SOAP response of the CSS validator (see w3c-css-validator.xsd) as
+ * a stream
+ * 
+ * @author Christoph Läubrich
+ */
+class CSSResponseReader extends ResponseReader {
+
+    /**
+     * Receives the parts of a CSS validation response while it is read
+     */
+    interface Listener {
+
+        /**
+         * Called once the header of the response (uri, checkedby, csslevel,
+         * date, validity) was read
+         * 
+         * @param response
+         *            the response, the result is not available yet
+         */
+        void startResponse(CSSValidationResponse response);
+
+        /**
+         * Called for each error of the response
+         * 
+         * @param response
+         * @param uri
+         *            the uri of the errorlist the error belongs to
+         * @param error
+         */
+        void error(CSSValidationResponse response, String uri, Error error);
+
+        /**
+         * Called for each warning of the response
+         * 
+         * @param response
+         * @param uri
+         *            the uri of the warninglist the warning belongs to
+         * @param warning
+         */
+        void warning(CSSValidationResponse response, String uri, Warning warning);
+
+        /**
+         * Called once the response was read completely
+         * 
+         * @param response
+         *            the response, errors and warnings of the result only
+         *            contain the counts, the lists are always empty
+         */
+        void endResponse(CSSValidationResponse response);
+    }
+
+    private static final String NAMESPACE = "http://www.w3.org/2005/07/css-validator";
+
+    private final Listener      listener;
+
+    private boolean             started;
+
+    /**
+     * @param listener
+     *            the listener to inform about the content of the response
+     * @throws JAXBException
+     *             if the parser setup failed
+     */
+    CSSResponseReader(Listener listener) throws JAXBException {
+        super(NAMESPACE, "cssvalidationresponse", ObjectFactory.class);
+        this.listener = listener;
+    }
+
+    @Override
+    protected void readResponse() throws XMLStreamException, JAXBException {
+        CSSValidationResponse response = new CSSValidationResponse();
+        response.setEncodingStyle(attribute(SOAP_NS, "encodingStyle"));
+        response.setResult(new Result());
+        started = false;
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("uri".equals(name)) {
+                response.setUri(readText());
+            } else if ("checkedby".equals(name)) {
+                response.setCheckedby(readText());
+            } else if ("csslevel".equals(name)) {
+                response.setCsslevel(readText());
+            } else if ("date".equals(name)) {
+                response.setDate(readText());
+            } else if ("validity".equals(name)) {
+                response.setValidity(readBoolean());
+            } else if ("result".equals(name)) {
+                start(response);
+                readResult(response);
+            } else {
+                skip();
+            }
+        }
+        leave();
+        start(response);
+        listener.endResponse(response);
+    }
+
+    private void readResult(CSSValidationResponse response) throws XMLStreamException, JAXBException {
+        Result result = response.getResult();
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("errors".equals(name)) {
+                ValidationErrors errors = new ValidationErrors();
+                errors.setLang(attribute(XMLConstants.XML_NS_URI, "lang"));
+                result.setErrors(errors);
+                enter();
+                while (nextChild()) {
+                    if ("errorcount".equals(name())) {
+                        errors.setErrorcount(readInt());
+                    } else if ("errorlist".equals(name())) {
+                        readErrorList(response);
+                    } else {
+                        skip();
+                    }
+                }
+                leave();
+            } else if ("warnings".equals(name)) {
+                ValidationWarnings warnings = new ValidationWarnings();
+                warnings.setLang(attribute(XMLConstants.XML_NS_URI, "lang"));
+                result.setWarnings(warnings);
+                enter();
+                while (nextChild()) {
+                    if ("warningcount".equals(name())) {
+                        warnings.setWarningcount(readInt());
+                    } else if ("warninglist".equals(name())) {
+                        readWarningList(response);
+                    } else {
+                        skip();
+                    }
+                }
+                leave();
+            } else {
+                skip();
+            }
+        }
+        leave();
+    }
+
+    private void readErrorList(CSSValidationResponse response) throws XMLStreamException, JAXBException {
+        String uri = null;
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("uri".equals(name)) {
+                uri = readText();
+            } else if ("error".equals(name)) {
+                listener.error(response, uri, unmarshal(Error.class));
+            } else {
+                skip();
+            }
+        }
+        leave();
+    }
+
+    private void readWarningList(CSSValidationResponse response) throws XMLStreamException, JAXBException {
+        String uri = null;
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("uri".equals(name)) {
+                uri = readText();
+            } else if ("warning".equals(name)) {
+                listener.warning(response, uri, unmarshal(Warning.class));
+            } else {
+                skip();
+            }
+        }
+        leave();
+    }
+
+    private void start(CSSValidationResponse response) {
+        if (!started) {
+            started = true;
+            listener.startResponse(response);
+        }
+    }
+}
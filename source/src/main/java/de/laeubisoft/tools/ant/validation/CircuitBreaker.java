@@ -0,0 +1,281 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops all requests to a validator endpoint while it is failing: the outcome
+ * of the last {@link #WINDOW} requests is kept, once the share of failed ones
+ * reaches the threshold the breaker opens and all callers of
+ * {@link #acquire()} wait for the pause. After the pause a single request is
+ * let through as a probe, if it succeeds the breaker closes again, otherwise
+ * the next pause starts. Like the {@link RateLimiter} no monitors are used, so
+ * waiting virtual threads do not block their carrier thread.
+ * 
+ * @author Christoph Läubrich
+ */
+final class CircuitBreaker {
+
+    /**
+     * The state of a breaker
+     */
+    enum State {
+        /**
+         * Requests are sent
+         */
+        CLOSED,
+        /**
+         * Requests wait for the end of the pause
+         */
+        OPEN,
+        /**
+         * A probe is sent, all other requests wait for its outcome
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The number of recent requests the failure rate is computed from
+     */
+    static final int                                           WINDOW   = 20;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final Lock                                         lock     = new ReentrantLock();
+
+    /**
+     * Signalled when the state changed
+     */
+    private final Condition                                    changed  = lock.newCondition();
+
+    /**
+     * The outcome of the recent requests as a ring buffer,
+     * <code>true</code> for a failure
+     */
+    private final boolean[]                                    outcomes = new boolean[WINDOW];
+
+    private int                                                next;
+
+    private int                                                recorded;
+
+    private int                                                failures;
+
+    /**
+     * Percentage of failed requests that opens the breaker, <code>0</code> if
+     * it never opens
+     */
+    private int                                                threshold;
+
+    private long                                               pauseNanos;
+
+    private State                                              state    = State.CLOSED;
+
+    /**
+     * The end of the current pause, only valid if the breaker is open
+     */
+    private long                                               openUntil;
+
+    private CircuitBreaker() {
+    }
+
+    /**
+     * Returns the breaker for the given endpoint, all tasks using the same
+     * endpoint share one instance, the settings of the last call apply
+     * 
+     * @param endpoint
+     *            the URL of the validator
+     * @param threshold
+     *            the percentage of failed requests among the last
+     *            {@link #WINDOW} requests that opens the breaker,
+     *            <code>0</code> to never open it
+     * @param pauseMillis
+     *            how long requests are paused before the endpoint is probed
+     * @return the breaker
+     */
+    static CircuitBreaker get(String endpoint, int threshold, long pauseMillis) {
+        CircuitBreaker breaker = BREAKERS.get(endpoint);
+        if (breaker == null) {
+            CircuitBreaker newBreaker = new CircuitBreaker();
+            breaker = BREAKERS.putIfAbsent(endpoint, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        breaker.configure(threshold, pauseMillis);
+        return breaker;
+    }
+
+    private void configure(int threshold, long pauseMillis) {
+        lock.lock();
+        try {
+            this.threshold = threshold;
+            this.pauseNanos = TimeUnit.MILLISECONDS.toNanos(pauseMillis);
+            if (threshold == 0 && state != State.CLOSED) {
+                close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a request might be sent, every call must be followed by a
+     * call to {@link #record(boolean)} with the outcome of the request
+     * 
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (state == State.CLOSED) {
+                    return;
+                }
+                if (state == State.OPEN) {
+                    long remaining = openUntil - System.nanoTime();
+                    if (remaining <= 0) {
+                        //this caller is the probe
+                        state = State.HALF_OPEN;
+                        return;
+                    }
+                    changed.awaitNanos(remaining);
+                } else {
+                    changed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #acquire()} but does not wait
+     * 
+     * @return <code>true</code> if a request might be sent now, it must be
+     *         followed by a call to {@link #record(boolean)} or
+     *         {@link #abandon()}
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (state == State.OPEN && openUntil - System.nanoTime() <= 0) {
+                //this caller is the probe
+                state = State.HALF_OPEN;
+                return true;
+            }
+            return state == State.CLOSED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a request that was acquired but not sent, if it was the probe
+     * another caller might send one right away
+     */
+    void abandon() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                state = State.OPEN;
+                openUntil = System.nanoTime();
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of a request
+     * 
+     * @param failed
+     *            <code>true</code> if the endpoint failed to answer the
+     *            request
+     * @return the new state if the request changed it, <code>null</code>
+     *         otherwise
+     */
+    State record(boolean failed) {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                if (failed) {
+                    open();
+                    return null;
+                }
+                close();
+                return State.CLOSED;
+            }
+            if (recorded == WINDOW) {
+                if (outcomes[next]) {
+                    failures--;
+                }
+            } else {
+                recorded++;
+            }
+            outcomes[next] = failed;
+            next = (next + 1) % WINDOW;
+            if (failed) {
+                failures++;
+                //the first failures of a run are not enough to judge the endpoint
+                if (state == State.CLOSED && threshold > 0 && recorded == WINDOW && failures * 100 >= threshold * WINDOW) {
+                    open();
+                    return State.OPEN;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the percentage of failed requests among the recent ones
+     */
+    int getFailureRate() {
+        lock.lock();
+        try {
+            return recorded == 0 ? 0 : failures * 100 / recorded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.nanoTime() + pauseNanos;
+        changed.signalAll();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        changed.signalAll();
+    }
+}
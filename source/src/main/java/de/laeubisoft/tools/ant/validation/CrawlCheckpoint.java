@@ -0,0 +1,288 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log of the progress of a crawl, so a crawl that was killed
+ * (or stopped by its budget) can be resumed where it stopped. Each queued URL
+ * (with its depth), each ignored URL (only its hash) and each finished page
+ * (with its validity) is appended as a small record, the file is flushed every
+ * few seconds. As pages are finished in the order they were queued, replaying
+ * the log into a {@link Frontier} restores the visited set and the remaining
+ * queue without holding more than the frontier itself in memory. A partially
+ * written last record (from a killed process) is discarded.
+ * 
+ * @author Christoph Läubrich
+ */
+final class CrawlCheckpoint {
+
+    /**
+     * Changing this invalidates existing checkpoints
+     */
+    private static final int       FORMAT_VERSION = 2;
+
+    private static final long      FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int       QUEUED         = 'Q';
+
+    private static final int       IGNORED        = 'I';
+
+    private static final int       DONE           = 'D';
+
+    private static final int       SKIPPED        = 0;
+
+    private static final int       VALID          = 1;
+
+    private static final int       INVALID        = 2;
+
+    private final File             file;
+
+    private final DataOutputStream out;
+
+    private final boolean          resumed;
+
+    private int                    done;
+
+    private int                    invalid;
+
+    private long                   lastFlush      = System.nanoTime();
+
+    private CrawlCheckpoint(File file, DataOutputStream out, boolean resumed, int done, int invalid) {
+        this.file = file;
+        this.out = out;
+        this.resumed = resumed;
+        this.done = done;
+        this.invalid = invalid;
+    }
+
+    /**
+     * Opens the checkpoint at the given file
+     * 
+     * @param file
+     *            the file of the checkpoint
+     * @param start
+     *            the normalized start URL of the crawl
+     * @param resume
+     *            <code>true</code> if an existing checkpoint of a crawl with
+     *            the same start URL should be continued, otherwise (or if there
+     *            is none) a new one is started
+     * @param frontier
+     *            the empty frontier of the crawl, receives the visited and
+     *            queued URLs if the checkpoint is resumed
+     * @return the checkpoint
+     * @throws IOException
+     *             if the checkpoint can't be read or written
+     */
+    static CrawlCheckpoint open(File file, String start, boolean resume, Frontier frontier) throws IOException {
+        if (resume && file.isFile()) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            DataInputStream in = new DataInputStream(counter);
+            long length = 0;
+            int done = 0;
+            int invalid = 0;
+            boolean matches = false;
+            try {
+                matches = in.readInt() == FORMAT_VERSION && in.readUTF().equals(start);
+                length = counter.count;
+                while (matches) {
+                    int type = in.read();
+                    if (type == QUEUED) {
+                        String url = in.readUTF();
+                        int depth = in.readInt();
+                        frontier.visit(url);
+                        frontier.add(url, depth);
+                    } else if (type == IGNORED) {
+                        frontier.visit(in.readLong());
+                    } else if (type == DONE) {
+                        if (in.readByte() == INVALID) {
+                            invalid++;
+                        }
+                        frontier.poll();
+                        done++;
+                    } else {
+                        //end of file, or garbage written by a killed process
+                        break;
+                    }
+                    length = counter.count;
+                }
+            } catch (EOFException e) {
+                //the last record is incomplete
+            } finally {
+                in.close();
+            }
+            if (matches) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                return new CrawlCheckpoint(file, out, true, done, invalid);
+            }
+            //a checkpoint of a different crawl, nothing was restored
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(start);
+        out.flush();
+        return new CrawlCheckpoint(file, out, false, 0, 0);
+    }
+
+    /**
+     * @return <code>true</code> if an existing checkpoint was continued
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the number of pages finished, including the ones of previous
+     *         runs
+     */
+    int getDone() {
+        return done;
+    }
+
+    /**
+     * @return the number of invalid pages, including the ones of previous
+     *         runs
+     */
+    int getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Records a URL that was added to the queue of the frontier
+     * 
+     * @param url
+     *            the normalized URL
+     * @param depth
+     *            the depth of the URL
+     * @throws IOException
+     */
+    void queued(String url, int depth) throws IOException {
+        out.write(QUEUED);
+        out.writeUTF(url);
+        out.writeInt(depth);
+    }
+
+    /**
+     * Records a URL that was seen but is ignored
+     * 
+     * @param url
+     *            the normalized URL
+     * @throws IOException
+     */
+    void ignored(String url) throws IOException {
+        out.write(IGNORED);
+        out.writeLong(Frontier.hash(url));
+    }
+
+    /**
+     * Records that the first page of the queue (as recorded by
+     * {@link #queued(String, int)}) is finished, and flushes the file if the last
+     * flush is some time ago
+     * 
+     * @param valid
+     *            the validity of the page or <code>null</code> if it was not
+     *            checked because it is of wrong type
+     * @throws IOException
+     */
+    void done(Boolean valid) throws IOException {
+        out.write(DONE);
+        out.writeByte(valid == null ? SKIPPED : valid.booleanValue() ? VALID : INVALID);
+        done++;
+        if (valid != null && !valid.booleanValue()) {
+            invalid++;
+        }
+        long now = System.nanoTime();
+        if (now - lastFlush > FLUSH_INTERVAL) {
+            out.flush();
+            lastFlush = now;
+        }
+    }
+
+    /**
+     * Closes the checkpoint
+     * 
+     * @param complete
+     *            <code>true</code> if the crawl finished, the checkpoint is
+     *            deleted then
+     * @throws IOException
+     */
+    void close(boolean complete) throws IOException {
+        out.close();
+        if (complete && !file.delete() && file.exists()) {
+            throw new IOException("can't delete " + file);
+        }
+    }
+
+    /**
+     * Counts the bytes read, to know where the last complete record ends
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
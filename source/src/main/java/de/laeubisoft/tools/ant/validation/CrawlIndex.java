@@ -0,0 +1,371 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * A persistent index of the pages seen by the last crawl. For each page the
+ * validators of the HTTP response (ETag and Last-Modified), the outgoing
+ * links and the stylesheets are stored, the raw validator response is kept in
+ * a {@link ResultCache} next to the index. This allows a crawl to ask for
+ * changed pages only with a conditional request, and to replay the stored
+ * result and links of pages that have not changed.
+ * 
+ * @author Christoph Läubrich
+ */
+final class CrawlIndex {
+
+    /**
+     * Changing this invalidates existing indexes
+     */
+    private static final int                   FORMAT_VERSION = 3;
+
+    private static final String                INDEX_FILE     = "pages.idx";
+
+    private static final String                RESPONSES_DIR  = "responses";
+
+    private final File                         file;
+
+    private final ResultCache                  responses;
+
+    /**
+     * The entries of the last run, only read after loading
+     */
+    private final Map<String, Entry>           previous;
+
+    /**
+     * The entries updated by this run
+     */
+    private final ConcurrentMap<String, Entry> current        = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicInteger                unchanged      = new AtomicInteger();
+
+    private final AtomicInteger                changed        = new AtomicInteger();
+
+    private CrawlIndex(File file, ResultCache responses, Map<String, Entry> previous) {
+        this.file = file;
+        this.responses = responses;
+        this.previous = previous;
+    }
+
+    /**
+     * Loads the index stored in the given directory, a missing or outdated
+     * index results in an empty one
+     * 
+     * @param directory
+     * @return the index
+     * @throws IOException
+     *             if the index can't be read or the directory can't be created
+     */
+    static CrawlIndex load(File directory) throws IOException {
+        ResultCache responses = ResultCache.get(new File(directory, RESPONSES_DIR), Integer.MAX_VALUE);
+        File file = new File(directory, INDEX_FILE);
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (file.isFile()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == FORMAT_VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String url = in.readUTF();
+                        String etag = readString(in);
+                        String lastModified = readString(in);
+                        String responseKey = readString(in);
+                        List<String> links = readList(in);
+                        List<String> stylesheets = readList(in);
+                        List<String> styles = readList(in);
+                        entries.put(url, new Entry(etag, lastModified, responseKey, links, stylesheets, styles));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new CrawlIndex(file, responses, entries);
+    }
+
+    /**
+     * @return the cache holding the validator responses of the pages
+     */
+    ResultCache getResponses() {
+        return responses;
+    }
+
+    /**
+     * @param url
+     * @return the entry of the last run for the given URL or <code>null</code>
+     */
+    Entry get(String url) {
+        return previous.get(url);
+    }
+
+    /**
+     * Records the entry of a page processed by this run
+     * 
+     * @param url
+     * @param entry
+     * @param replayed
+     *            <code>true</code> if the stored result was replayed,
+     *            <code>false</code> if the page was sent to the validator
+     */
+    void put(String url, Entry entry, boolean replayed) {
+        current.put(url, entry);
+        if (replayed) {
+            unchanged.incrementAndGet();
+        } else {
+            changed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of pages whose stored result was replayed
+     */
+    int getUnchanged() {
+        return unchanged.get();
+    }
+
+    /**
+     * @return the number of pages that were sent to the validator
+     */
+    int getChanged() {
+        return changed.get();
+    }
+
+    /**
+     * Writes the index
+     * 
+     * @param complete
+     *            <code>true</code> if the crawl finished, entries of pages not
+     *            reached anymore are dropped then, otherwise they are kept for
+     *            the next run
+     * @throws IOException
+     */
+    void save(boolean complete) throws IOException {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (!complete) {
+            entries.putAll(previous);
+        }
+        entries.putAll(current);
+        Set<String> keys = new HashSet<String>();
+        for (Entry entry : entries.values()) {
+            keys.add(entry.responseKey);
+        }
+        for (Entry entry : previous.values()) {
+            if (entry.responseKey != null && !keys.contains(entry.responseKey)) {
+                responses.remove(entry.responseKey);
+            }
+        }
+        File tmp = File.createTempFile(INDEX_FILE, ".tmp", file.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                writeString(out, entry.etag);
+                writeString(out, entry.lastModified);
+                writeString(out, entry.responseKey);
+                writeList(out, entry.links);
+                writeList(out, entry.stylesheets);
+                writeList(out, entry.styles);
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("can't store crawl index " + file);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        String value = in.readUTF();
+        return value.length() == 0 ? null : value;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeUTF(value == null ? "" : value);
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> list = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readText(in));
+        }
+        return list;
+    }
+
+    private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String value : list) {
+            writeText(out, value);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeText(DataOutputStream, String)}
+     */
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a string that might be longer than
+     * {@link DataOutputStream#writeUTF(String)} allows, like the content of a
+     * <code>style</code> element
+     */
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * The stored state of a single page
+     */
+    static final class Entry {
+
+        private final String       etag;
+
+        private final String       lastModified;
+
+        private final String       responseKey;
+
+        private final List<String> links;
+
+        private final List<String> stylesheets;
+
+        private final List<String> styles;
+
+        /**
+         * @param etag
+         *            the ETag of the page or <code>null</code>
+         * @param lastModified
+         *            the Last-Modified date of the page or <code>null</code>
+         * @param responseKey
+         *            the key of the validator response in
+         *            {@link CrawlIndex#getResponses()}
+         * @param links
+         *            the outgoing links of the page
+         * @param stylesheets
+         *            the URLs of the stylesheets of the page
+         * @param styles
+         *            the content of the <code>style</code> elements of the
+         *            page
+         */
+        Entry(String etag, String lastModified, String responseKey, List<String> links, List<String> stylesheets, List<String> styles) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.responseKey = responseKey;
+            this.links = Collections.unmodifiableList(links);
+            this.stylesheets = Collections.unmodifiableList(stylesheets);
+            this.styles = Collections.unmodifiableList(styles);
+        }
+
+        /**
+         * Creates an entry from the headers of the given response
+         * 
+         * @param method
+         *            the executed method
+         * @param responseKey
+         * @param extractor
+         *            the extractor the page was parsed with
+         * @return the entry
+         */
+        static Entry from(HttpMethod method, String responseKey, LinkExtractor extractor) {
+            Header etag = method.getResponseHeader("ETag");
+            Header lastModified = method.getResponseHeader("Last-Modified");
+            return new Entry(etag != null ? etag.getValue() : null, lastModified != null ? lastModified.getValue() : null, responseKey, extractor.getLinks(), extractor.getStylesheets(), extractor.getStyles());
+        }
+
+        /**
+         * Makes the given request conditional, so the server answers with
+         * <code>304 Not Modified</code> if the page has not changed since this
+         * entry was recorded
+         * 
+         * @param method
+         * @return <code>true</code> if the request was made conditional,
+         *         <code>false</code> if the entry has no validators
+         */
+        boolean applyTo(HttpMethod method) {
+            if (etag != null) {
+                method.setRequestHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                method.setRequestHeader("If-Modified-Since", lastModified);
+            }
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * @return the key of the stored validator response
+         */
+        String getResponseKey() {
+            return responseKey;
+        }
+
+        /**
+         * @return the outgoing links of the page in document order
+         */
+        List<String> getLinks() {
+            return links;
+        }
+
+        /**
+         * @return the URLs of the stylesheets of the page in document order
+         */
+        List<String> getStylesheets() {
+            return stylesheets;
+        }
+
+        /**
+         * @return the content of the <code>style</code> elements of the page
+         *         in document order
+         */
+        List<String> getStyles() {
+            return styles;
+        }
+    }
+}
@@ -0,0 +1,604 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Crawls a site starting at a given URL with a pool of worker threads. Each
+ * worker fetches a page and extracts its links, while the request to the
+ * validator for the page is sent by the crawling thread with a
+ * {@link ValidatorClient} as soon as the page is scheduled, so the workers
+ * never wait for the validator (unless the page has to be fetched before it
+ * can be validated, with a {@link CrawlIndex} or if pages are uploaded).
+ * Results are committed strictly in the order the pages were discovered, so the log output, the
+ * discovered pages and the page that fails the build are the same as with a
+ * single thread. Each committed page can be recorded in a
+ * {@link CrawlCheckpoint}, so a killed crawl can be resumed. The crawl can be
+ * bounded by the depth of the pages, the number of pages, a time budget and by
+ * sampling a number of pages per URL pattern; a crawl stopped by its budget
+ * keeps its checkpoint, so the next run continues it. A crawl can be split
+ * across several processes with a {@link ShardQueue}, each one only checks the
+ * pages it owns and hands the other links over. If the task checks
+ * stylesheets, each distinct stylesheet of the committed pages is checked once
+ * by the same workers, its result is committed in order like a page. Linked
+ * stylesheets are owned by a shard like pages and handed over the same way.
+ * 
+ * @author Christoph Läubrich
+ */
+class Crawler {
+
+    /**
+     * How many pages per thread might be scheduled ahead of the page that is
+     * committed next
+     */
+    private static final int              SCHEDULE_AHEAD = 4;
+
+    /**
+     * How often URLs are exchanged with the other shards
+     */
+    private static final long             POLL_INTERVAL  = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * The depth of a pending stylesheet (or one handed over to another shard),
+     * it has no links to follow
+     */
+    private static final int              STYLESHEET     = -1;
+
+    private final W3CMarkupValidationTask task;
+
+    private final int                     threads;
+
+    private final CrawlIndex              index;
+
+    private final int                     maxFrontierSize;
+
+    private final File                    checkpointFile;
+
+    private final boolean                 resume;
+
+    private final ShardQueue              shards;
+
+    private int                           maxPages;
+
+    private int                           maxDepth       = -1;
+
+    private long                          timeBudget;
+
+    private int                           pagesPerPattern;
+
+    /**
+     * Number of pages queued per URL pattern if {@link #pagesPerPattern} is
+     * set
+     */
+    private final Map<String, Integer>    patternCounts  = new HashMap<String, Integer>();
+
+    /**
+     * The URLs of the linked stylesheets and the keys of the
+     * <code>style</code> elements already checked by the crawl
+     */
+    private final Set<String>             stylesheets    = new HashSet<String>();
+
+    private boolean                       resumed;
+
+    private boolean                       stopped;
+
+    /**
+     * @param task
+     *            the task that performs the actual work
+     * @param threads
+     *            the number of worker threads to use
+     * @param index
+     *            the index of the last crawl to only revalidate changed pages,
+     *            or <code>null</code> to check every page
+     * @param maxFrontierSize
+     *            the number of queued URLs kept in memory, <code>0</code> for
+     *            no limit
+     * @param checkpointFile
+     *            the file to record the progress in, or <code>null</code>
+     * @param resume
+     *            <code>true</code> to continue the crawl recorded in the
+     *            checkpoint file
+     * @param shards
+     *            the queue to exchange URLs with the other shards of the
+     *            crawl, or <code>null</code> to check all pages
+     */
+    Crawler(W3CMarkupValidationTask task, int threads, CrawlIndex index, int maxFrontierSize, File checkpointFile, boolean resume, ShardQueue shards) {
+        this.task = task;
+        this.threads = Math.max(1, threads);
+        this.index = index;
+        this.maxFrontierSize = maxFrontierSize;
+        this.checkpointFile = checkpointFile;
+        this.resume = resume;
+        this.shards = shards;
+    }
+
+    /**
+     * Limits the crawl, all limits apply to a single run
+     * 
+     * @param maxPages
+     *            the number of pages to check, <code>0</code> for no limit
+     * @param maxDepth
+     *            the number of links to follow from the start page,
+     *            <code>-1</code> for no limit
+     * @param timeBudget
+     *            the time in milliseconds after that no further pages are
+     *            started, <code>0</code> for no limit
+     * @param pagesPerPattern
+     *            the number of pages to check for each URL pattern (see
+     *            {@link #pattern(String)}), <code>0</code> for no limit
+     */
+    void setBudget(int maxPages, int maxDepth, long timeBudget, int pagesPerPattern) {
+        this.maxPages = maxPages;
+        this.maxDepth = maxDepth;
+        this.timeBudget = timeBudget;
+        this.pagesPerPattern = pagesPerPattern;
+    }
+
+    /**
+     * @return <code>true</code> if the last crawl continued a checkpoint, so
+     *         it did not see the pages of the previous runs
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return <code>true</code> if the last crawl stopped before all pages
+     *         were checked, as its budget was exhausted or the task had seen
+     *         enough
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Crawls all pages reachable from the given start URL
+     * 
+     * @param start
+     * @throws BuildException
+     *             if a page could not be processed or was invalid and the task
+     *             should fail
+     */
+    void crawl(URL start) throws BuildException {
+        ExecutorService executor = task.newExecutor(task.getTaskName(), threads);
+        //the requests to the validator are sent by their own threads, the workers only fetch the pages meanwhile
+        ValidatorClient client = new ValidatorClient(task.newExecutor(task.getTaskName() + "-validator", threads));
+        //The frontier is only touched by this thread, workers only see their own page
+        Frontier frontier = new Frontier(maxFrontierSize);
+        CrawlCheckpoint checkpoint = null;
+        boolean complete = false;
+        stopped = false;
+        patternCounts.clear();
+        stylesheets.clear();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudget);
+        try {
+            String first = Frontier.normalize(start);
+            checkpoint = openCheckpoint(first, frontier);
+            if (!resumed) {
+                frontier.visit(first);
+                if (shards == null || shards.owns(first)) {
+                    enqueue(frontier, first, 0);
+                }
+                if (checkpoint != null) {
+                    checkpoint.queued(first, 0);
+                }
+            }
+            ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+            int window = threads * SCHEDULE_AHEAD;
+            int scheduled = 0;
+            long lastPoll = System.nanoTime();
+            while (true) {
+                if (shards != null && (pending.isEmpty() || System.nanoTime() - lastPoll > POLL_INTERVAL)) {
+                    shards.flush();
+                    for (ShardQueue.Link link : shards.receive()) {
+                        //the sender has already checked the ignore pattern
+                        if (link.getDepth() == STYLESHEET) {
+                            if (stylesheets.add(link.getUrl())) {
+                                pending.add(new Pending(link.getUrl(), STYLESHEET, executor.submit(new StylesheetWorker(toURL(link.getUrl()), null, link.getUrl())), null));
+                            }
+                        } else if (frontier.visit(link.getUrl())) {
+                            enqueue(frontier, link.getUrl(), link.getDepth());
+                        }
+                    }
+                    lastPoll = System.nanoTime();
+                }
+                while (!stopped && !frontier.isEmpty() && pending.size() < window) {
+                    String exhausted = null;
+                    if (maxPages > 0 && scheduled >= maxPages) {
+                        exhausted = "maxPages = " + maxPages;
+                    } else if (timeBudget > 0 && System.nanoTime() - deadline >= 0) {
+                        exhausted = "timeBudget = " + TimeUnit.MILLISECONDS.toSeconds(timeBudget) + " seconds";
+                    }
+                    if (exhausted != null) {
+                        //pages already started are still committed, but no further pages are started
+                        task.log("Crawl budget exhausted (" + exhausted + ") after " + scheduled + " pages, " + frontier.size() + " queued pages are not checked", Project.MSG_WARN);
+                        stopped = true;
+                        break;
+                    }
+                    String url = frontier.poll();
+                    URL page = toURL(url);
+                    //sent right away if the validator can fetch the page on its own
+                    Future<ValidationResult> validation = task.submitPage(page, index, client);
+                    pending.add(new Pending(url, frontier.getDepth(), executor.submit(new PageWorker(page, validation != null)), validation));
+                    scheduled++;
+                }
+                if (pending.isEmpty()) {
+                    //a shard stopped by its budget does not wait for the others, they don't wait for it either
+                    if (shards == null || stopped || isShardCrawlFinished()) {
+                        break;
+                    }
+                    if (timeBudget > 0 && System.nanoTime() - deadline >= 0) {
+                        task.log("Crawl budget exhausted (timeBudget = " + TimeUnit.MILLISECONDS.toSeconds(timeBudget) + " seconds) after " + scheduled + " pages while waiting for links from other shards", Project.MSG_WARN);
+                        stopped = true;
+                        break;
+                    }
+                    //other shards might still hand over links
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(POLL_INTERVAL));
+                    continue;
+                }
+                Pending next = pending.removeFirst();
+                ValidationResult result = await(next.work);
+                if (next.validation != null) {
+                    result = task.mergePage(ValidatorClient.await(next.validation), result);
+                }
+                result.getLog().replay(task);
+                if (result.getFailure() != null) {
+                    throw result.getFailure();
+                }
+                String url = next.url;
+                int depth = next.depth;
+                if (depth == STYLESHEET) {
+                    if (shards != null) {
+                        shards.recordStylesheet(url, result.getValid());
+                    }
+                    continue;
+                }
+                depth++;
+                //the links of the deepest pages are not even looked at
+                List<String> links = maxDepth < 0 || depth <= maxDepth ? result.getLinks() : Collections.<String> emptyList();
+                for (String link : links) {
+                    if (frontier.visit(link)) {
+                        boolean queued = false;
+                        if (!task.isIgnored(link)) {
+                            if (shards == null || shards.owns(link)) {
+                                queued = enqueue(frontier, link, depth);
+                            } else {
+                                shards.send(link, depth);
+                            }
+                        }
+                        if (checkpoint != null) {
+                            if (queued) {
+                                checkpoint.queued(link, depth);
+                            } else {
+                                checkpoint.ignored(link);
+                            }
+                        }
+                    }
+                }
+                List<StylesheetWorker> workers = new ArrayList<StylesheetWorker>();
+                for (String stylesheet : result.getStylesheets()) {
+                    if (stylesheets.add(stylesheet) && !task.isIgnored(stylesheet)) {
+                        if (shards == null || shards.owns(stylesheet)) {
+                            workers.add(new StylesheetWorker(toURL(stylesheet), null, stylesheet));
+                        } else {
+                            //the owner checks it, even if none of its own pages links it
+                            shards.send(stylesheet, STYLESHEET);
+                        }
+                    }
+                }
+                List<String> styles = result.getStyles();
+                for (int i = 0; i < styles.size(); i++) {
+                    //a style element shared by many pages (e.g. from a template) is only checked on the first one
+                    if (stylesheets.add(ResultCache.key().add(styles.get(i)).build())) {
+                        workers.add(new StylesheetWorker(null, styles.get(i), url + "#style-" + (i + 1)));
+                    }
+                }
+                //the stylesheets are committed right after their page, so the output does not depend on the number of threads
+                for (int i = workers.size() - 1; i >= 0; i--) {
+                    StylesheetWorker worker = workers.get(i);
+                    pending.addFirst(new Pending(worker.name, STYLESHEET, executor.submit(worker), null));
+                }
+                if (checkpoint != null) {
+                    checkpoint.done(result.getValid());
+                }
+                if (shards != null) {
+                    shards.record(url, result.getValid());
+                }
+                if (task.isSaturated()) {
+                    stopped = true;
+                    break;
+                }
+            }
+            complete = true;
+        } catch (IOException e) {
+            throw new BuildException("can't access the spilled crawl frontier, the checkpoint or the shard directory", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("interrupted while waiting for other shards", e);
+        } finally {
+            executor.shutdownNow();
+            client.shutdown();
+            frontier.close();
+            if (checkpoint != null) {
+                closeCheckpoint(checkpoint, complete);
+            }
+            if (shards != null) {
+                closeShard(complete);
+            }
+        }
+    }
+
+    /**
+     * Adds the given URL to the frontier, unless {@link #pagesPerPattern}
+     * pages with the same URL pattern were queued already
+     * 
+     * @return <code>true</code> if the URL was queued
+     */
+    private boolean enqueue(Frontier frontier, String url, int depth) throws IOException {
+        if (pagesPerPattern > 0) {
+            String pattern = pattern(url);
+            Integer count = patternCounts.get(pattern);
+            if (count != null && count.intValue() >= pagesPerPattern) {
+                task.log("URL " + url + " is not checked, " + pagesPerPattern + " pages matching " + pattern + " are checked already", Project.MSG_VERBOSE);
+                return false;
+            }
+            patternCounts.put(pattern, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+        }
+        frontier.add(url, depth);
+        return true;
+    }
+
+    /**
+     * Returns the pattern of the given URL for sampling: the last path segment
+     * (the page itself) is replaced by <code>*</code>, all other segments
+     * containing a digit by <code>{n}</code>, and only the names of the query
+     * parameters are kept. So <code>/blog/2013/05/post.html?page=2</code> and
+     * <code>/blog/2012/11/other.html?page=7</code> have the same pattern
+     * <code>/blog/{n}/{n}/*?page</code>.
+     * 
+     * @param url
+     *            a normalized URL
+     * @return the pattern
+     */
+    static String pattern(String url) {
+        int query = url.indexOf('?');
+        String path = query < 0 ? url : url.substring(0, query);
+        int start = path.indexOf("//");
+        //keep scheme and authority
+        start = start < 0 ? 0 : path.indexOf('/', start + 2);
+        if (start < 0) {
+            return url;
+        }
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(path, 0, start);
+        int last = path.lastIndexOf('/');
+        int segment = start;
+        while (segment < last) {
+            int end = path.indexOf('/', segment + 1);
+            String name = path.substring(segment + 1, end);
+            sb.append('/');
+            boolean digit = false;
+            for (int i = 0; i < name.length() && !digit; i++) {
+                digit = Character.isDigit(name.charAt(i));
+            }
+            sb.append(digit ? "{n}" : name);
+            segment = end;
+        }
+        sb.append(last + 1 < path.length() ? "/*" : "/");
+        if (query >= 0) {
+            char separator = '?';
+            for (String parameter : url.substring(query + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                sb.append(separator).append(equals < 0 ? parameter : parameter.substring(0, equals));
+                separator = '&';
+            }
+        }
+        return sb.toString();
+    }
+
+    private CrawlCheckpoint openCheckpoint(String first, Frontier frontier) throws IOException {
+        resumed = false;
+        if (checkpointFile == null) {
+            return null;
+        }
+        CrawlCheckpoint checkpoint = CrawlCheckpoint.open(checkpointFile, first, resume, frontier);
+        resumed = checkpoint.isResumed();
+        if (resumed) {
+            task.log("Resuming crawl from " + checkpointFile + ": " + checkpoint.getDone() + " pages checked (" + checkpoint.getInvalid() + " invalid), " + frontier.size() + " pages queued", Project.MSG_INFO);
+        } else if (resume) {
+            task.log("No checkpoint of this crawl found at " + checkpointFile + ", starting a new crawl", Project.MSG_INFO);
+        }
+        return checkpoint;
+    }
+
+    private void closeCheckpoint(CrawlCheckpoint checkpoint, boolean complete) throws BuildException {
+        if (complete && stopped) {
+            task.log("The checkpoint " + checkpointFile + " is kept, run again with resume=\"true\" to continue the crawl", Project.MSG_INFO);
+        } else if (resumed && complete) {
+            task.log("Crawl finished: " + checkpoint.getDone() + " pages checked (" + checkpoint.getInvalid() + " invalid) over all runs", Project.MSG_INFO);
+        }
+        try {
+            //a crawl stopped by its budget is continued by the next run
+            checkpoint.close(complete && !stopped);
+        } catch (IOException e) {
+            if (complete) {
+                throw new BuildException("can't close crawl checkpoint " + checkpointFile, e);
+            }
+            task.log("can't close crawl checkpoint " + checkpointFile + ": " + e, Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if all shards are out of work
+     * @throws BuildException
+     *             if another shard failed or is considered failed
+     */
+    private boolean isShardCrawlFinished() throws BuildException {
+        try {
+            return shards.isFinished();
+        } catch (IOException e) {
+            //the message tells which shard failed
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
+    private void closeShard(boolean complete) throws BuildException {
+        if (complete) {
+            task.log("Shard " + shards.getName() + " finished: " + shards.getChecked() + " pages checked (" + shards.getInvalid() + " invalid), " + shards.getSent() + " links handed over to other shards" + W3CMarkupValidationTask.describeStylesheets(shards.getCheckedStylesheets(), shards.getInvalidStylesheets()), Project.MSG_INFO);
+        }
+        try {
+            shards.close(complete);
+        } catch (IOException e) {
+            if (complete) {
+                throw new BuildException("can't write the results of shard " + shards.getName(), e);
+            }
+            task.log("can't write the results of shard " + shards.getName() + ": " + e, Project.MSG_WARN);
+        }
+    }
+
+    private static URL toURL(String url) throws BuildException {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new BuildException("can't parse URL " + url, e);
+        }
+    }
+
+    private ValidationResult await(Future<ValidationResult> future) throws BuildException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("interrupted while waiting for crawl results", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BuildException) {
+                throw (BuildException) cause;
+            }
+            throw new BuildException("unexpected problem while crawling", cause);
+        }
+    }
+
+    /**
+     * A page or stylesheet that is not committed yet
+     */
+    private static final class Pending {
+
+        /**
+         * The URL of the page or the name of the stylesheet
+         */
+        private final String                   url;
+
+        private final int                      depth;
+
+        private final Future<ValidationResult> work;
+
+        /**
+         * The request to the validator sent for the page while it is fetched,
+         * or <code>null</code>
+         */
+        private final Future<ValidationResult> validation;
+
+        Pending(String url, int depth, Future<ValidationResult> work, Future<ValidationResult> validation) {
+            this.url = url;
+            this.depth = depth;
+            this.work = work;
+            this.validation = validation;
+        }
+    }
+
+    /**
+     * Validates a single page and extracts its links, or only extracts the
+     * links if the page was sent to the validator already
+     */
+    private final class PageWorker implements Callable<ValidationResult> {
+
+        private final URL     url;
+
+        private final boolean linksOnly;
+
+        PageWorker(URL url, boolean linksOnly) {
+            this.url = url;
+            this.linksOnly = linksOnly;
+        }
+
+        public ValidationResult call() {
+            ValidationResult result = new ValidationResult();
+            try {
+                if (linksOnly) {
+                    task.extractLinks(url, result);
+                } else {
+                    task.checkPage(url, index, result);
+                }
+            } catch (BuildException e) {
+                result.setFailure(e);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Validates a single stylesheet
+     */
+    private final class StylesheetWorker implements Callable<ValidationResult> {
+
+        private final URL    url;
+
+        private final String style;
+
+        private final String name;
+
+        StylesheetWorker(URL url, String style, String name) {
+            this.url = url;
+            this.style = style;
+            this.name = name;
+        }
+
+        public ValidationResult call() {
+            ValidationResult result = new ValidationResult();
+            try {
+                task.checkStylesheet(url, style, name, result);
+            } catch (BuildException e) {
+                result.setFailure(e);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Validates a batch of files with a {@link ValidatorClient}. The output of each
+ * file is reported in the order of the files, no matter in which order the
+ * validator answers. A single invalid file does not stop the batch, instead a
+ * summary is printed at the end and the build fails once for all of them.
+ * 
+ * @author Christoph Läubrich
+ */
+class FileBatch {
+
+    /**
+     * How many files per thread might be scheduled ahead of the file that is
+     * reported next
+     */
+    private static final int SCHEDULE_AHEAD = 4;
+
+    /**
+     * Validates a single file
+     */
+    interface Check {
+
+        /**
+         * Validates the given file, all output must be written to the given
+         * log
+         * 
+         * @param file
+         * @param out
+         * @return the validity of the file or <code>null</code> if the file
+         *         can't be checked because it is of wrong type
+         * @throws BuildException
+         *             if the file could not be validated
+         */
+        Boolean check(File file, BufferedLog out) throws BuildException;
+    }
+
+    private final AbstractValidationTask task;
+
+    private final int                    threads;
+
+    /**
+     * @param task
+     *            the task to report to
+     * @param threads
+     *            the number of files validated at the same time
+     */
+    FileBatch(AbstractValidationTask task, int threads) {
+        this.task = task;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Validates all given files
+     * 
+     * @param files
+     * @param check
+     *            performs the validation of a single file
+     * @param fail
+     *            <code>true</code> if invalid files should fail the build
+     * @throws BuildException
+     *             if a file could not be validated, or was invalid and fail is
+     *             set
+     */
+    void run(List<File> files, final Check check, boolean fail) throws BuildException {
+        int valid = 0;
+        int invalid = 0;
+        int skipped = 0;
+        int errors = 0;
+        ValidatorClient client = new ValidatorClient(task.newExecutor(task.getTaskName(), threads));
+        try {
+            Iterator<File> iterator = files.iterator();
+            ArrayDeque<File> scheduled = new ArrayDeque<File>();
+            ArrayDeque<Future<ValidationResult>> pending = new ArrayDeque<Future<ValidationResult>>();
+            int window = threads * SCHEDULE_AHEAD;
+            while (iterator.hasNext() || !pending.isEmpty()) {
+                while (iterator.hasNext() && pending.size() < window) {
+                    final File file = iterator.next();
+                    scheduled.add(file);
+                    pending.add(client.submit(new ValidatorClient.Request() {
+
+                        public Boolean validate(BufferedLog out) throws BuildException {
+                            return check.check(file, out);
+                        }
+                    }));
+                }
+                File file = scheduled.removeFirst();
+                ValidationResult result = ValidatorClient.await(pending.removeFirst());
+                result.getLog().replay(task);
+                if (result.getFailure() != null) {
+                    task.log(file + ": " + result.getFailure().getMessage(), Project.MSG_ERR);
+                    errors++;
+                } else if (result.getValid() == null) {
+                    skipped++;
+                } else if (result.getValid().booleanValue()) {
+                    valid++;
+                } else {
+                    invalid++;
+                }
+            }
+        } finally {
+            client.shutdown();
+        }
+        task.log("Validated " + files.size() + " files: " + valid + " valid, " + invalid + " invalid, " + skipped + " skipped, " + errors + " failed", Project.MSG_INFO);
+        if (errors > 0) {
+            throw new BuildException(errors + " of " + files.size() + " files could not be validated");
+        }
+        if (invalid > 0 && fail) {
+            throw new BuildException(invalid + " of " + files.size() + " files are invalid");
+        }
+    }
+}
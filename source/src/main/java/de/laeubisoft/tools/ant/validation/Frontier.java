@@ -0,0 +1,356 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * The queue of pages still to crawl together with the set of pages already
+ * seen. The queue is FIFO with constant time operations, if it grows beyond a
+ * limit further URLs are spilled to temporary files and read back in the same
+ * order once the in-memory part is drained. Seen pages are only remembered by a
+ * 64 bit hash of their normalized URL, which needs a fraction of the memory of
+ * the strings (the chance that two of a million URLs collide is about
+ * 10<sup>-8</sup>). The crawl depth of each queued URL is kept as well, run
+ * length encoded, as URLs are usually queued in the order of their depth.
+ * 
+ * @author Christoph Läubrich
+ */
+final class Frontier {
+
+    private final int                 maxInMemory;
+
+    private final ArrayDeque<String>  queue   = new ArrayDeque<String>();
+
+    /**
+     * Spilled segments, oldest first, each holds at most {@link #maxInMemory}
+     * URLs
+     */
+    private final ArrayDeque<Segment> spilled = new ArrayDeque<Segment>();
+
+    private final LongSet             visited = new LongSet();
+
+    /**
+     * The depths of the queued URLs as pairs of depth and count, oldest first
+     */
+    private final ArrayDeque<int[]>   depths  = new ArrayDeque<int[]>();
+
+    private int                       size;
+
+    private int                       depth;
+
+    /**
+     * @param maxInMemory
+     *            the number of queued URLs kept in memory, <code>0</code> to
+     *            never spill to disk
+     */
+    Frontier(int maxInMemory) {
+        this.maxInMemory = maxInMemory > 0 ? maxInMemory : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Marks the given URL as seen
+     * 
+     * @param url
+     *            a normalized URL
+     * @return <code>true</code> if the URL was not seen before
+     */
+    boolean visit(String url) {
+        return visited.add(hash(url));
+    }
+
+    /**
+     * Marks the URL with the given hash as seen
+     * 
+     * @param urlHash
+     *            the {@link #hash(String)} of a normalized URL
+     * @return <code>true</code> if the URL was not seen before
+     */
+    boolean visit(long urlHash) {
+        return visited.add(urlHash);
+    }
+
+    /**
+     * Adds the given URL to the end of the queue
+     * 
+     * @param url
+     *            a normalized URL
+     * @param urlDepth
+     *            the number of links between the start page and the URL
+     * @throws IOException
+     *             if the URL must be spilled but can't be written
+     */
+    void add(String url, int urlDepth) throws IOException {
+        if (spilled.isEmpty() && queue.size() < maxInMemory) {
+            queue.add(url);
+        } else {
+            Segment segment = spilled.peekLast();
+            if (segment == null || segment.count >= maxInMemory) {
+                segment = new Segment();
+                spilled.add(segment);
+            }
+            segment.write(url);
+        }
+        int[] last = depths.peekLast();
+        if (last != null && last[0] == urlDepth) {
+            last[1]++;
+        } else {
+            depths.add(new int[] { urlDepth, 1 });
+        }
+        size++;
+    }
+
+    /**
+     * Removes the first URL of the queue
+     * 
+     * @return the URL or <code>null</code> if the queue is empty
+     * @throws IOException
+     *             if spilled URLs can't be read back
+     */
+    String poll() throws IOException {
+        if (queue.isEmpty() && !spilled.isEmpty()) {
+            spilled.removeFirst().readInto(queue);
+        }
+        String url = queue.poll();
+        if (url != null) {
+            int[] first = depths.peekFirst();
+            depth = first[0];
+            if (--first[1] == 0) {
+                depths.removeFirst();
+            }
+            size--;
+        }
+        return url;
+    }
+
+    /**
+     * @return the depth of the URL returned by the last call of
+     *         {@link #poll()}
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return <code>true</code> if no URL is queued
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of queued URLs
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of URLs seen so far
+     */
+    int visitedCount() {
+        return visited.size();
+    }
+
+    /**
+     * Discards all spilled URLs
+     */
+    void close() {
+        for (Segment segment : spilled) {
+            segment.delete();
+        }
+        spilled.clear();
+        queue.clear();
+        depths.clear();
+        size = 0;
+    }
+
+    /**
+     * Normalizes an URL, so different spellings of the same page are only
+     * crawled once: scheme and host are lower cased, the default port, the
+     * fragment and an empty query are removed and an empty path becomes "/"
+     * 
+     * @param url
+     * @return the normalized URL as string
+     */
+    static String normalize(URL url) {
+        String protocol = url.getProtocol().toLowerCase(Locale.ENGLISH);
+        StringBuilder sb = new StringBuilder(url.toString().length());
+        sb.append(protocol).append(':');
+        String host = url.getHost();
+        if (url.getAuthority() != null) {
+            sb.append("//");
+            if (url.getUserInfo() != null) {
+                sb.append(url.getUserInfo()).append('@');
+            }
+            if (host != null) {
+                sb.append(host.toLowerCase(Locale.ENGLISH));
+            }
+            int port = url.getPort();
+            if (port != -1 && port != url.getDefaultPort()) {
+                sb.append(':').append(port);
+            }
+        }
+        String path = url.getPath();
+        if (path.length() == 0 && url.getAuthority() != null) {
+            sb.append('/');
+        } else {
+            sb.append(path);
+        }
+        String query = url.getQuery();
+        if (query != null && query.length() > 0) {
+            sb.append('?').append(query);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the chars of the given string
+     */
+    static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            hash ^= c & 0xff;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * A temporary file holding a part of the queue
+     */
+    private static final class Segment {
+
+        private final File             file;
+
+        private final DataOutputStream out;
+
+        private int                    count;
+
+        Segment() throws IOException {
+            file = File.createTempFile("frontier", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        void write(String url) throws IOException {
+            out.writeUTF(url);
+            count++;
+        }
+
+        void readInto(ArrayDeque<String> queue) throws IOException {
+            out.close();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                for (int i = 0; i < count; i++) {
+                    queue.add(in.readUTF());
+                }
+            } finally {
+                in.close();
+                file.delete();
+            }
+        }
+
+        void delete() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                //we delete it anyways
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * An open addressing hash set of primitive longs
+     */
+    private static final class LongSet {
+
+        private long[]  table = new long[1024];
+
+        private int     size;
+
+        private boolean containsZero;
+
+        boolean add(long value) {
+            if (value == 0) {
+                //0 marks a free slot
+                if (containsZero) {
+                    return false;
+                }
+                containsZero = true;
+                size++;
+                return true;
+            }
+            int mask = table.length - 1;
+            int index = mix(value) & mask;
+            while (table[index] != 0) {
+                if (table[index] == value) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            table[index] = value;
+            if (++size * 2 > table.length) {
+                grow();
+            }
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            int mask = table.length - 1;
+            for (long value : old) {
+                if (value != 0) {
+                    int index = mix(value) & mask;
+                    while (table[index] != 0) {
+                        index = (index + 1) & mask;
+                    }
+                    table[index] = value;
+                }
+            }
+        }
+
+        private static int mix(long value) {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            return (int) value;
+        }
+    }
+}
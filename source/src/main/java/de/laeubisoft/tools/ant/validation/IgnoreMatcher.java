@@ -0,0 +1,249 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches URLs against a set of ignore pattern at once. Most ignore pattern are
+ * simple like <code>.*\.zip</code> or <code>http://example\.test/old/.*</code>,
+ * those are checked with plain string operations (equals, startsWith, endsWith
+ * or contains). All other pattern are only evaluated if the URL starts with
+ * their literal prefix, the ones without a prefix are combined into a single
+ * alternation. Only if any of them matches, the pattern are evaluated one by
+ * one to find the first matching pattern, so the result is exactly the same as
+ * matching each pattern in turn.
+ * 
+ * @author Christoph Läubrich
+ */
+final class IgnoreMatcher {
+
+    private static final String  META           = "\\[](){}.*+?^$|";
+
+    private static final String  ANY            = ".*";
+
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9kQ]|\\(\\?<[a-zA-Z]");
+
+    private final List<Pattern>  patterns;
+
+    private final Set<String>    exact          = new HashSet<String>();
+
+    private final List<String>   prefixes       = new ArrayList<String>();
+
+    private final List<String>   suffixes       = new ArrayList<String>();
+
+    private final List<String>   infixes        = new ArrayList<String>();
+
+    /**
+     * Pattern with a literal prefix together with that prefix
+     */
+    private final List<Object[]> guarded        = new ArrayList<Object[]>();
+
+    /**
+     * The alternation of all pattern without a literal prefix, or
+     * <code>null</code>
+     */
+    private final Pattern        combined;
+
+    /**
+     * @param patterns
+     *            the pattern to match, in the order they should be reported
+     */
+    IgnoreMatcher(List<Pattern> patterns) {
+        this.patterns = new ArrayList<Pattern>(patterns);
+        StringBuilder alternation = new StringBuilder();
+        for (Pattern pattern : patterns) {
+            String regex = pattern.pattern();
+            if (pattern.flags() != 0) {
+                addCombined(alternation, pattern);
+                continue;
+            }
+            boolean anyStart = regex.startsWith(ANY);
+            String rest = anyStart ? regex.substring(ANY.length()) : regex;
+            boolean anyEnd = rest.endsWith(ANY) && !rest.endsWith("\\" + ANY);
+            if (anyEnd) {
+                rest = rest.substring(0, rest.length() - ANY.length());
+            }
+            String literal = literal(rest);
+            if (literal != null) {
+                if (anyStart && anyEnd) {
+                    infixes.add(literal);
+                } else if (anyStart) {
+                    suffixes.add(literal);
+                } else if (anyEnd) {
+                    prefixes.add(literal);
+                } else {
+                    exact.add(literal);
+                }
+                continue;
+            }
+            String prefix = prefix(regex);
+            if (prefix.length() > 0) {
+                guarded.add(new Object[] { prefix, pattern });
+            } else {
+                addCombined(alternation, pattern);
+            }
+        }
+        combined = alternation.length() > 0 ? Pattern.compile(alternation.toString()) : null;
+    }
+
+    /**
+     * Finds the first pattern that matches the whole URL
+     * 
+     * @param url
+     *            the URL to check
+     * @return the pattern or <code>null</code> if none matches
+     */
+    Pattern firstMatch(String url) {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        //the fast paths assume ".*" can match any part of the URL
+        if (!hasLineTerminator(url) && !anyMatch(url)) {
+            return null;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(url).matches()) {
+                return pattern;
+            }
+        }
+        return null;
+    }
+
+    private boolean anyMatch(String url) {
+        if (exact.contains(url)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (url.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String suffix : suffixes) {
+            if (url.endsWith(suffix)) {
+                return true;
+            }
+        }
+        for (String infix : infixes) {
+            if (url.contains(infix)) {
+                return true;
+            }
+        }
+        for (Object[] entry : guarded) {
+            if (url.startsWith((String) entry[0]) && ((Pattern) entry[1]).matcher(url).matches()) {
+                return true;
+            }
+        }
+        return combined != null && combined.matcher(url).matches();
+    }
+
+    private void addCombined(StringBuilder alternation, Pattern pattern) {
+        String regex = pattern.pattern();
+        if (pattern.flags() != 0 || BACK_REFERENCE.matcher(regex).find()) {
+            //flags, group references and quotes can't be combined safely, so they are always evaluated
+            guarded.add(new Object[] { "", pattern });
+            return;
+        }
+        if (alternation.length() > 0) {
+            alternation.append('|');
+        }
+        alternation.append("(?:").append(regex).append(')');
+    }
+
+    /**
+     * @return the text matched by the given regular expression if it only
+     *         consists of literal (or escaped) characters, <code>null</code>
+     *         otherwise
+     */
+    private static String literal(String regex) {
+        StringBuilder sb = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                sb.append(regex.charAt(++i));
+            } else if (META.indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the literal text every match of the given regular expression
+     *         must start with, might be empty
+     */
+    private static String prefix(String regex) {
+        if (hasAlternation(regex)) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            int length = sb.length();
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;
+                }
+                sb.append(regex.charAt(++i));
+            } else if (META.indexOf(c) >= 0) {
+                break;
+            } else {
+                sb.append(c);
+            }
+            if (i + 1 < regex.length() && "*?{".indexOf(regex.charAt(i + 1)) >= 0) {
+                //the char just added is optional
+                sb.setLength(length);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasAlternation(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '|') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasLineTerminator(String url) {
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Combines the errors and warnings of many documents into distinct issues. An
+ * error that comes from a template appears on every page using it, so each
+ * message is fingerprinted by its id, its position and its source snippet
+ * (without markup, whitespace and numbers, that differ from page to page), all
+ * messages with the same fingerprint are counted as one issue. Memory is
+ * bounded by the number of distinct issues, not by the number of documents.
+ * 
+ * @author Christoph Läubrich
+ */
+final class IssueAggregator {
+
+    private static final Pattern TAG        = Pattern.compile("<[^>]*>");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final Pattern NUMBER     = Pattern.compile("[0-9]+");
+
+    /**
+     * A distinct error or warning
+     */
+    static final class Issue {
+
+        private final ReportWriter.Message message;
+
+        private final List<String>         samples = new ArrayList<String>();
+
+        private final int                  order;
+
+        private int                        count;
+
+        Issue(ReportWriter.Message message, int order) {
+            this.message = message;
+            this.order = order;
+        }
+
+        /**
+         * @return the first occurrence of the issue
+         */
+        ReportWriter.Message getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the URIs of the first documents the issue was found on
+         */
+        List<String> getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return how often the issue was found
+         */
+        int getCount() {
+            return count;
+        }
+    }
+
+    private final Map<String, Issue> issues     = new LinkedHashMap<String, Issue>();
+
+    private final int                samples;
+
+    private final int                maxOccurrences;
+
+    private int                      documents;
+
+    private int                      invalid;
+
+    private int                      errors;
+
+    private int                      warnings;
+
+    private Issue                    saturated;
+
+    /**
+     * @param samples
+     *            the number of URIs to remember per issue
+     * @param maxOccurrences
+     *            the number of occurrences of an error after that further
+     *            documents are not needed, <code>0</code> for no limit
+     */
+    IssueAggregator(int samples, int maxOccurrences) {
+        this.samples = samples;
+        this.maxOccurrences = maxOccurrences;
+    }
+
+    /**
+     * Adds the messages of the given document
+     * 
+     * @param document
+     */
+    void add(ReportWriter.Document document) {
+        documents++;
+        if (!document.isValid()) {
+            invalid++;
+        }
+        for (ReportWriter.Message message : document.getMessages()) {
+            if (message.isError()) {
+                errors++;
+            } else {
+                warnings++;
+            }
+            String fingerprint = fingerprint(message);
+            Issue issue = issues.get(fingerprint);
+            if (issue == null) {
+                issue = new Issue(message, issues.size());
+                issues.put(fingerprint, issue);
+            }
+            issue.count++;
+            List<String> uris = issue.samples;
+            if (uris.size() < samples && !uris.contains(document.getUri())) {
+                uris.add(document.getUri());
+            }
+            if (saturated == null && maxOccurrences > 0 && message.isError() && issue.count >= maxOccurrences) {
+                saturated = issue;
+            }
+        }
+    }
+
+    /**
+     * @return the first error that was found at least the maximum number of
+     *         times, or <code>null</code>
+     */
+    Issue getSaturated() {
+        return saturated;
+    }
+
+    /**
+     * @return all issues, errors before warnings, the most frequent first
+     */
+    List<Issue> getIssues() {
+        List<Issue> list = new ArrayList<Issue>(issues.values());
+        Collections.sort(list, new Comparator<Issue>() {
+
+            public int compare(Issue o1, Issue o2) {
+                if (o1.message.isError() != o2.message.isError()) {
+                    return o1.message.isError() ? -1 : 1;
+                }
+                if (o1.count != o2.count) {
+                    return o1.count > o2.count ? -1 : 1;
+                }
+                return o1.order - o2.order;
+            }
+        });
+        return list;
+    }
+
+    int getDocuments() {
+        return documents;
+    }
+
+    int getInvalid() {
+        return invalid;
+    }
+
+    int getErrors() {
+        return errors;
+    }
+
+    int getWarnings() {
+        return warnings;
+    }
+
+    private static String fingerprint(ReportWriter.Message message) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(message.isError() ? 'E' : 'W');
+        sb.append('\u0000').append(message.getRule() != null ? message.getRule() : message.getText());
+        sb.append('\u0000').append(message.getLine());
+        sb.append('\u0000').append(message.getColumn());
+        sb.append('\u0000').append(normalize(message.getSource()));
+        return sb.toString();
+    }
+
+    /**
+     * @return the given source snippet without markup, numbers replaced by 0
+     *         and whitespace collapsed
+     */
+    static String normalize(String source) {
+        if (source == null) {
+            return "";
+        }
+        String text = TAG.matcher(source).replaceAll("");
+        text = NUMBER.matcher(text).replaceAll("0");
+        return WHITESPACE.matcher(text).replaceAll(" ").trim();
+    }
+}
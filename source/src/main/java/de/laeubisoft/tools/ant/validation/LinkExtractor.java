@@ -0,0 +1,322 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.Project;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Collects the links of a HTML page that point to the same host and port as
+ * the page itself, while the page is parsed (e.g. by TagSoup). Optionally the
+ * stylesheets of the page are collected as well: linked stylesheets and
+ * stylesheets imported by a <code>style</code> element on the same host and
+ * port, and the content of the <code>style</code> elements. The common forms
+ * of links are resolved and normalized as strings, so the crawler can check
+ * them against its visited set and the ignore pattern before any {@link URL}
+ * is built.
+ * 
+ * @author Christoph Läubrich
+ */
+class LinkExtractor extends DefaultHandler {
+
+    /**
+     * <code>@import url("a.css")</code> or <code>@import "a.css"</code>
+     */
+    private static final Pattern IMPORT          = Pattern.compile("@import\\s+(?:url\\(\\s*)?[\"']?([^\"')\\s;]+)", Pattern.CASE_INSENSITIVE);
+
+    private final URL            page;
+
+    /**
+     * The normalized URL of the page, or <code>null</code> if links can't be
+     * resolved as strings
+     */
+    private final String         normalizedPage;
+
+    /**
+     * The normalized scheme, host and port of the page
+     */
+    private final String         origin;
+
+    /**
+     * The normalized path of the page up to its last <code>/</code>
+     */
+    private final String         directory;
+
+    private final int            port;
+
+    private final BufferedLog    out;
+
+    /**
+     * strings, to not trigger host name resolution of URL#hashCode()
+     */
+    private final Set<String>    linksFound      = new LinkedHashSet<String>();
+
+    private final Set<String>    stylesheetsFound;
+
+    private final List<String>   styles;
+
+    /**
+     * The content of the current <code>style</code> element, or
+     * <code>null</code> outside of it
+     */
+    private StringBuilder        style;
+
+    /**
+     * @param page
+     *            the URL of the page, relative links are resolved against it
+     * @param out
+     *            the log to write messages to
+     * @param collectStyles
+     *            <code>true</code> if the stylesheets should be collected too
+     */
+    LinkExtractor(URL page, BufferedLog out, boolean collectStyles) {
+        this.page = page;
+        this.out = out;
+        port = port(page);
+        String protocol = page.getProtocol().toLowerCase(Locale.ENGLISH);
+        if (("http".equals(protocol) || "https".equals(protocol)) && page.getUserInfo() == null && page.getHost().length() > 0) {
+            normalizedPage = Frontier.normalize(page);
+            int start = normalizedPage.indexOf('/', protocol.length() + 3);
+            int query = normalizedPage.indexOf('?', start);
+            origin = normalizedPage.substring(0, start);
+            directory = normalizedPage.substring(start, normalizedPage.lastIndexOf('/', query < 0 ? normalizedPage.length() : query) + 1);
+        } else {
+            normalizedPage = null;
+            origin = null;
+            directory = null;
+        }
+        stylesheetsFound = collectStyles ? new LinkedHashSet<String>() : null;
+        styles = collectStyles ? new ArrayList<String>() : null;
+    }
+
+    @Override
+    public void startElement(String nsuri, String localName, String qName, Attributes attributes) throws SAXException {
+        if ("a".equalsIgnoreCase(qName)) {
+            add(linksFound, "href", attributes.getValue("href"));
+        } else if (stylesheetsFound != null) {
+            if ("link".equalsIgnoreCase(qName) && isStylesheet(attributes.getValue("rel"))) {
+                add(stylesheetsFound, "href", attributes.getValue("href"));
+            } else if ("style".equalsIgnoreCase(qName)) {
+                style = new StringBuilder();
+            }
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (style != null) {
+            style.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endElement(String nsuri, String localName, String qName) throws SAXException {
+        if (style != null && "style".equalsIgnoreCase(qName)) {
+            String text = style.toString().trim();
+            style = null;
+            if (text.length() > 0) {
+                styles.add(text);
+                Matcher matcher = IMPORT.matcher(text);
+                while (matcher.find()) {
+                    add(stylesheetsFound, "@import", matcher.group(1));
+                }
+            }
+        }
+    }
+
+    private void add(Set<String> found, String attribute, String value) {
+        if (value == null || addResolved(found, value.trim())) {
+            return;
+        }
+        try {
+            URL url = new URL(page, value);
+            if (url.getHost().equalsIgnoreCase(page.getHost()) && port(url) == port(page)) {
+                found.add(Frontier.normalize(url));
+            }
+        } catch (MalformedURLException e) {
+            out.log("can't parse URL for " + attribute + " = " + value + ", it will be ignored!", Project.MSG_ERR);
+        }
+    }
+
+    /**
+     * Resolves the common forms of links as strings, so no {@link URL} is
+     * built for them: absolute http(s) URLs, absolute and relative paths
+     * (without dot segments, that {@link URL} removes in its own way) and
+     * fragments. Links to other hosts are dropped right away.
+     * 
+     * @param found
+     *            the set to add the normalized link to
+     * @param spec
+     *            the trimmed link
+     * @return <code>true</code> if the link was handled, <code>false</code>
+     *         if it has to be resolved with {@link URL}
+     */
+    private boolean addResolved(Set<String> found, String spec) {
+        if (normalizedPage == null) {
+            return false;
+        }
+        int hash = spec.indexOf('#');
+        if (hash >= 0) {
+            spec = spec.substring(0, hash);
+            if (spec.length() == 0) {
+                //the page itself
+                found.add(normalizedPage);
+                return true;
+            }
+        }
+        if (spec.length() == 0 || spec.charAt(0) == '?') {
+            return false;
+        }
+        String base;
+        String rest;
+        int colon = schemeEnd(spec);
+        if (colon > 0) {
+            String scheme = spec.substring(0, colon).toLowerCase(Locale.ENGLISH);
+            if (!("http".equals(scheme) || "https".equals(scheme)) || !spec.startsWith("//", colon + 1)) {
+                return false;
+            }
+            int start = colon + 3;
+            int end = start;
+            while (end < spec.length() && spec.charAt(end) != '/' && spec.charAt(end) != '?') {
+                end++;
+            }
+            String authority = spec.substring(start, end).toLowerCase(Locale.ENGLISH);
+            int defaultPort = "http".equals(scheme) ? 80 : 443;
+            int portStart = authority.lastIndexOf(':');
+            String host = portStart < 0 ? authority : authority.substring(0, portStart);
+            if (host.length() == 0 || authority.indexOf('@') >= 0 || authority.indexOf('[') >= 0 || authority.indexOf('%') >= 0) {
+                return false;
+            }
+            int linkPort = defaultPort;
+            if (portStart >= 0) {
+                String digits = authority.substring(portStart + 1);
+                if (digits.length() == 0 || digits.length() > 5) {
+                    return false;
+                }
+                for (int i = 0; i < digits.length(); i++) {
+                    if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                        return false;
+                    }
+                }
+                linkPort = Integer.parseInt(digits);
+            }
+            if (!host.equals(page.getHost().toLowerCase(Locale.ENGLISH)) || linkPort != port) {
+                //another host, no need to look any further
+                return true;
+            }
+            base = scheme + "://" + host + (linkPort != defaultPort ? ":" + linkPort : "");
+            rest = end < spec.length() ? spec.substring(end) : "/";
+            if (rest.charAt(0) == '?') {
+                rest = "/" + rest;
+            }
+        } else if (colon == 0 || spec.startsWith("//")) {
+            return false;
+        } else if (spec.charAt(0) == '/') {
+            base = origin;
+            rest = spec;
+        } else {
+            base = origin;
+            rest = directory + spec;
+        }
+        int query = rest.indexOf('?');
+        String path = query < 0 ? rest : rest.substring(0, query);
+        if (path.indexOf("/.") >= 0) {
+            return false;
+        }
+        if (query >= 0 && query == rest.length() - 1) {
+            //an empty query is dropped by the normalization
+            rest = path;
+        }
+        found.add(base + rest);
+        return true;
+    }
+
+    /**
+     * @return the index of the colon after the scheme of the given link,
+     *         <code>-1</code> if it has none
+     */
+    private static int schemeEnd(String spec) {
+        for (int i = 0; i < spec.length(); i++) {
+            char c = spec.charAt(i);
+            if (c == ':') {
+                return i;
+            }
+            if (c == '/' || c == '?' || c == '#' || !(Character.isLetterOrDigit(c) || c == '+' || c == '-' || c == '.')) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isStylesheet(String rel) {
+        if (rel == null) {
+            return false;
+        }
+        for (String type : rel.trim().split("\\s+")) {
+            if ("stylesheet".equals(type.toLowerCase(Locale.ENGLISH))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the links found so far, normalized with
+     *         {@link Frontier#normalize(URL)}, in document order without
+     *         duplicates
+     */
+    List<String> getLinks() {
+        return new ArrayList<String>(linksFound);
+    }
+
+    /**
+     * @return the URLs of the stylesheets found so far, normalized with
+     *         {@link Frontier#normalize(URL)}, in document order without
+     *         duplicates, an empty list if they are not collected
+     */
+    List<String> getStylesheets() {
+        return stylesheetsFound != null ? new ArrayList<String>(stylesheetsFound) : new ArrayList<String>();
+    }
+
+    /**
+     * @return the content of the <code>style</code> elements found so far in
+     *         document order, an empty list if they are not collected
+     */
+    List<String> getStyles() {
+        return styles != null ? new ArrayList<String>(styles) : new ArrayList<String>();
+    }
+
+    private static int port(URL url) {
+        int port = url.getPort();
+        return port != -1 ? port : url.getDefaultPort();
+    }
+}
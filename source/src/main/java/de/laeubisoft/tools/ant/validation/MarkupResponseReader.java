@@ -0,0 +1,193 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.w3.markup.validator.Debug;
+import org.w3.markup.validator.Error;
+import org.w3.markup.validator.ErrorList;
+import org.w3.markup.validator.MarkupValidationResponse;
+import org.w3.markup.validator.ObjectFactory;
+import org.w3.markup.validator.ValidationErrors;
+import org.w3.markup.validator.ValidationWarnings;
+import org.w3.markup.validator.Warning;
+import org.w3.markup.validator.WarningList;
+
+/**
+ * Reads the SOAP response of the markup validator (see
+ * w3c-markup-validator.xsd) as a stream
+ * 
+ * @author Christoph Läubrich
+ */
+class MarkupResponseReader extends ResponseReader {
+
+    /**
+     * Receives the parts of a markup validation response while it is read
+     */
+    interface Listener {
+
+        /**
+         * Called once the header of the response (debug, uri, doctype,
+         * charset, validity) was read
+         * 
+         * @param response
+         *            the response, errors and warnings are not available yet
+         */
+        void startResponse(MarkupValidationResponse response);
+
+        /**
+         * Called for each error of the response
+         * 
+         * @param response
+         * @param error
+         */
+        void error(MarkupValidationResponse response, Error error);
+
+        /**
+         * Called for each warning of the response
+         * 
+         * @param response
+         * @param warning
+         */
+        void warning(MarkupValidationResponse response, Warning warning);
+
+        /**
+         * Called once the response was read completely
+         * 
+         * @param response
+         *            the response, errors and warnings only contain the
+         *            counts, the lists are always empty
+         */
+        void endResponse(MarkupValidationResponse response);
+    }
+
+    private static final String NAMESPACE = "http://www.w3.org/2005/10/markup-validator";
+
+    private final Listener      listener;
+
+    private boolean             started;
+
+    /**
+     * @param listener
+     *            the listener to inform about the content of the response
+     * @throws JAXBException
+     *             if the parser setup failed
+     */
+    MarkupResponseReader(Listener listener) throws JAXBException {
+        super(NAMESPACE, "markupvalidationresponse", ObjectFactory.class);
+        this.listener = listener;
+    }
+
+    @Override
+    protected void readResponse() throws XMLStreamException, JAXBException {
+        MarkupValidationResponse response = new MarkupValidationResponse();
+        response.setEncodingStyle(attribute(SOAP_NS, "encodingStyle"));
+        started = false;
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("debug".equals(name)) {
+                response.getDebug().add(unmarshal(Debug.class));
+            } else if ("uri".equals(name)) {
+                response.setUri(readText());
+            } else if ("checkedby".equals(name)) {
+                response.setCheckedby(readText());
+            } else if ("doctype".equals(name)) {
+                response.setDoctype(readText());
+            } else if ("charset".equals(name)) {
+                response.setCharset(readText());
+            } else if ("validity".equals(name)) {
+                response.setValidity(readBoolean());
+            } else if ("errors".equals(name)) {
+                start(response);
+                readErrors(response);
+            } else if ("warnings".equals(name)) {
+                start(response);
+                readWarnings(response);
+            } else {
+                skip();
+            }
+        }
+        leave();
+        start(response);
+        listener.endResponse(response);
+    }
+
+    private void readErrors(MarkupValidationResponse response) throws XMLStreamException, JAXBException {
+        ValidationErrors errors = new ValidationErrors();
+        errors.setErrorlist(new ErrorList());
+        response.setErrors(errors);
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("errorcount".equals(name)) {
+                errors.setErrorcount(readInt());
+            } else if ("errorlist".equals(name)) {
+                enter();
+                while (nextChild()) {
+                    if ("error".equals(name())) {
+                        listener.error(response, unmarshal(Error.class));
+                    } else {
+                        skip();
+                    }
+                }
+                leave();
+            } else {
+                skip();
+            }
+        }
+        leave();
+    }
+
+    private void readWarnings(MarkupValidationResponse response) throws XMLStreamException, JAXBException {
+        ValidationWarnings warnings = new ValidationWarnings();
+        warnings.setWarninglist(new WarningList());
+        response.setWarnings(warnings);
+        enter();
+        while (nextChild()) {
+            String name = name();
+            if ("warningcount".equals(name)) {
+                warnings.setWarningcount(readInt());
+            } else if ("warninglist".equals(name)) {
+                enter();
+                while (nextChild()) {
+                    if ("warning".equals(name())) {
+                        listener.warning(response, unmarshal(Warning.class));
+                    } else {
+                        skip();
+                    }
+                }
+                leave();
+            } else {
+                skip();
+            }
+        }
+        leave();
+    }
+
+    private void start(MarkupValidationResponse response) {
+        if (!started) {
+            started = true;
+            listener.startResponse(response);
+        }
+    }
+}
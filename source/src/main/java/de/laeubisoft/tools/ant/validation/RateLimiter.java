@@ -0,0 +1,205 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the requests sent to a validator endpoint with a token bucket: the
+ * bucket holds at most <i>burst</i> permits and is refilled with
+ * <i>requestsPerSecond</i>, a request takes one permit before it is sent.
+ * Additionally the number of requests that are in flight at the same time can
+ * be bounded. A permit is reserved under the lock but waited for outside of it,
+ * so concurrent workers queue up in order and together use the full rate
+ * without exceeding it. No monitors are used, so waiting virtual threads do
+ * not block their carrier thread.
+ * 
+ * @author Christoph Läubrich
+ */
+final class RateLimiter {
+
+    private static final ConcurrentMap<String, RateLimiter> LIMITERS   = new ConcurrentHashMap<String, RateLimiter>();
+
+    private final Lock                                      lock       = new ReentrantLock();
+
+    /**
+     * Signalled when a request finished or the settings changed
+     */
+    private final Condition                                 released   = lock.newCondition();
+
+    /**
+     * Permits per nanosecond, <code>0</code> if the rate is not limited
+     */
+    private double                                          rate;
+
+    private int                                             burst;
+
+    /**
+     * Maximum number of requests in flight, <code>0</code> if not limited
+     */
+    private int                                             maxInFlight;
+
+    /**
+     * Available permits, might be negative if permits are reserved ahead
+     */
+    private double                                          permits;
+
+    private long                                            lastRefill = System.nanoTime();
+
+    private int                                             inFlight;
+
+    private RateLimiter() {
+    }
+
+    /**
+     * Returns the limiter for the given endpoint, all tasks using the same
+     * endpoint share one instance, the settings of the last call apply
+     * 
+     * @param endpoint
+     *            the URL of the validator
+     * @param requestsPerSecond
+     *            the sustained rate, <code>0</code> for no limit
+     * @param burst
+     *            the number of requests that might be sent at once after a
+     *            pause, at least <code>1</code>
+     * @param maxInFlight
+     *            the maximum number of concurrent requests, <code>0</code> for
+     *            no limit
+     * @return the limiter
+     */
+    static RateLimiter get(String endpoint, double requestsPerSecond, int burst, int maxInFlight) {
+        RateLimiter limiter = LIMITERS.get(endpoint);
+        if (limiter == null) {
+            RateLimiter newLimiter = new RateLimiter();
+            limiter = LIMITERS.putIfAbsent(endpoint, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+                newLimiter.permits = burst;
+            }
+        }
+        limiter.configure(requestsPerSecond, burst, maxInFlight);
+        return limiter;
+    }
+
+    private void configure(double requestsPerSecond, int burst, int maxInFlight) {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.rate = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.maxInFlight = maxInFlight;
+            permits = Math.min(permits, burst);
+            //waiting threads must recheck the in flight limit
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the maximum number of requests in flight, requests already in
+     * flight are not affected
+     * 
+     * @param maxInFlight
+     *            the maximum number of concurrent requests, <code>0</code> for
+     *            no limit
+     */
+    void setMaxInFlight(int maxInFlight) {
+        lock.lock();
+        try {
+            this.maxInFlight = maxInFlight;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a request might be sent, every call must be followed by a
+     * call to {@link #release()} once the response was read
+     * 
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting, no permit is
+     *             held then
+     */
+    void acquire() throws InterruptedException {
+        long waitNanos;
+        lock.lockInterruptibly();
+        try {
+            while (maxInFlight > 0 && inFlight >= maxInFlight) {
+                released.await();
+            }
+            inFlight++;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            refill(now);
+            permits -= 1;
+            waitNanos = permits < 0 ? (long) Math.ceil(-permits / rate) : 0;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            //the reserved permit is lost, but the in flight slot must be freed
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Marks a request as finished
+     */
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            permits = Math.min(burst, permits + (now - lastRefill) * rate);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.File;
+
+/**
+ * Just a Helper class for Ant to hand a report file over to us...
+ * 
+ * @author Christoph Läubrich
+ */
+public class Report {
+
+    private String format;
+
+    private File   file;
+
+    /**
+     * @param format
+     *            <code>junit</code>, <code>sarif</code> or <code>jsonl</code>
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * @param file
+     *            the file to write the report to
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return format + " report " + file;
+    }
+}
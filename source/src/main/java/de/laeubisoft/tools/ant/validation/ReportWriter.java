@@ -0,0 +1,521 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the results of a task to a machine readable report file while the
+ * documents are validated. Each document is written as soon as its response
+ * was read, only the messages of a single document are held in memory.
+ * Supported formats are JUnit XML (a test case per document), SARIF (a result
+ * per message) and JSON lines (a line per document).
+ * 
+ * @author Christoph Läubrich
+ */
+abstract class ReportWriter {
+
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * The validation result of a single document
+     */
+    static final class Document {
+
+        private final String        uri;
+
+        private final List<Message> messages = new ArrayList<Message>();
+
+        private Boolean             valid;
+
+        private int                 errors;
+
+        private int                 warnings;
+
+        /**
+         * @param uri
+         *            the URI (or file name) of the document
+         */
+        Document(String uri) {
+            this.uri = uri;
+        }
+
+        /**
+         * Adds an error
+         * 
+         * @param line
+         *            the line or <code>null</code>
+         * @param column
+         *            the column or <code>null</code>
+         * @param text
+         *            the message
+         * @param rule
+         *            the id of the message or <code>null</code>
+         * @param source
+         *            the source snippet the message refers to or
+         *            <code>null</code>
+         */
+        void error(String line, String column, String text, String rule, String source) {
+            messages.add(new Message(true, line, column, text, rule, source));
+            errors++;
+        }
+
+        /**
+         * Adds a warning
+         * 
+         * @param line
+         *            the line or <code>null</code>
+         * @param column
+         *            the column or <code>null</code>
+         * @param text
+         *            the message
+         * @param rule
+         *            the id of the message or <code>null</code>
+         * @param source
+         *            the source snippet the message refers to or
+         *            <code>null</code>
+         */
+        void warning(String line, String column, String text, String rule, String source) {
+            messages.add(new Message(false, line, column, text, rule, source));
+            warnings++;
+        }
+
+        void setValid(Boolean valid) {
+            this.valid = valid;
+        }
+
+        String getUri() {
+            return uri;
+        }
+
+        boolean isValid() {
+            return valid == null || valid.booleanValue();
+        }
+
+        List<Message> getMessages() {
+            return messages;
+        }
+    }
+
+    /**
+     * An error or warning of a document
+     */
+    static final class Message {
+
+        private final boolean error;
+
+        private final String  line;
+
+        private final String  column;
+
+        private final String  text;
+
+        private final String  rule;
+
+        private final String  source;
+
+        Message(boolean error, String line, String column, String text, String rule, String source) {
+            this.error = error;
+            this.line = line;
+            this.column = column;
+            this.text = text;
+            this.rule = rule;
+            this.source = source;
+        }
+
+        boolean isError() {
+            return error;
+        }
+
+        String getLine() {
+            return line;
+        }
+
+        String getColumn() {
+            return column;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        String getRule() {
+            return rule;
+        }
+
+        String getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * The final report file
+     */
+    protected final File   file;
+
+    /**
+     * The name of the task, used as the name of the test suite or tool
+     */
+    protected final String tool;
+
+    protected final Writer out;
+
+    /**
+     * @param file
+     *            the file to write to
+     * @param tool
+     *            the name of the task
+     * @param target
+     *            the file that is written while documents are added
+     * @throws IOException
+     */
+    ReportWriter(File file, String tool, File target) throws IOException {
+        this.file = file;
+        this.tool = tool;
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("can't create directory " + parent);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(target), UTF8));
+    }
+
+    /**
+     * Creates the writer for the given report
+     * 
+     * @param report
+     *            the format and file of the report
+     * @param tool
+     *            the name of the task
+     * @return the writer
+     * @throws IOException
+     *             if the file can't be created
+     * @throws IllegalArgumentException
+     *             if the format is unknown
+     */
+    static ReportWriter open(Report report, String tool) throws IOException {
+        String format = report.getFormat();
+        if ("junit".equals(format)) {
+            return new JUnitWriter(report.getFile(), tool);
+        } else if ("sarif".equals(format)) {
+            return new SarifWriter(report.getFile(), tool);
+        } else if ("jsonl".equals(format)) {
+            return new JsonLinesWriter(report.getFile(), tool);
+        }
+        throw new IllegalArgumentException("format must be 'junit', 'sarif' or 'jsonl' but was " + format);
+    }
+
+    /**
+     * Writes the given document
+     * 
+     * @param document
+     * @throws IOException
+     */
+    abstract void write(Document document) throws IOException;
+
+    /**
+     * Completes the report, the writer can't be used afterwards
+     * 
+     * @throws IOException
+     */
+    void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * @return the given number as an integer if it is a positive number,
+     *         <code>-1</code> otherwise
+     */
+    static int position(String number) {
+        if (number == null) {
+            return -1;
+        }
+        try {
+            int value = Integer.parseInt(number.trim());
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the given text as a JSON string
+     */
+    static void json(Writer out, String text) throws IOException {
+        if (text == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c == '\n') {
+                out.write("\\n");
+            } else if (c == '\r') {
+                out.write("\\r");
+            } else if (c == '\t') {
+                out.write("\\t");
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                out.write(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Writes the given text escaped for XML content or attributes, characters
+     * that are not allowed in XML are dropped
+     */
+    static void xml(Writer out, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                out.write("&amp;");
+            } else if (c == '<') {
+                out.write("&lt;");
+            } else if (c == '>') {
+                out.write("&gt;");
+            } else if (c == '"') {
+                out.write("&quot;");
+            } else if (c < 0x20 && c != '\n' && c != '\r' && c != '\t' || c == '\ufffe' || c == '\uffff') {
+                //not allowed in XML 1.0
+            } else {
+                out.write(c);
+            }
+        }
+    }
+
+    /**
+     * A line per document, with all of its messages
+     */
+    private static final class JsonLinesWriter extends ReportWriter {
+
+        JsonLinesWriter(File file, String tool) throws IOException {
+            super(file, tool, file);
+        }
+
+        @Override
+        void write(Document document) throws IOException {
+            out.write("{\"tool\":");
+            json(out, tool);
+            out.write(",\"uri\":");
+            json(out, document.uri);
+            out.write(",\"valid\":");
+            out.write(String.valueOf(document.valid));
+            out.write(",\"errors\":");
+            out.write(String.valueOf(document.errors));
+            out.write(",\"warnings\":");
+            out.write(String.valueOf(document.warnings));
+            out.write(",\"messages\":[");
+            for (int i = 0; i < document.messages.size(); i++) {
+                Message message = document.messages.get(i);
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write("{\"severity\":");
+                out.write(message.error ? "\"error\"" : "\"warning\"");
+                int line = position(message.line);
+                if (line > 0) {
+                    out.write(",\"line\":");
+                    out.write(String.valueOf(line));
+                }
+                int column = position(message.column);
+                if (column > 0) {
+                    out.write(",\"column\":");
+                    out.write(String.valueOf(column));
+                }
+                out.write(",\"message\":");
+                json(out, message.text);
+                out.write(",\"rule\":");
+                json(out, message.rule);
+                out.write('}');
+            }
+            out.write("]}\n");
+        }
+    }
+
+    /**
+     * A SARIF 2.1.0 log with a single run, the results are streamed into its
+     * result array
+     */
+    private static final class SarifWriter extends ReportWriter {
+
+        private boolean first = true;
+
+        SarifWriter(File file, String tool) throws IOException {
+            super(file, tool, file);
+            out.write("{\"version\":\"2.1.0\",\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"runs\":[{\"tool\":{\"driver\":{\"name\":");
+            json(out, tool);
+            out.write("}},\"results\":[");
+        }
+
+        @Override
+        void write(Document document) throws IOException {
+            for (Message message : document.messages) {
+                out.write(first ? "\n" : ",\n");
+                first = false;
+                out.write("{");
+                if (message.rule != null && message.rule.length() > 0) {
+                    out.write("\"ruleId\":");
+                    json(out, message.rule);
+                    out.write(',');
+                }
+                out.write("\"level\":");
+                out.write(message.error ? "\"error\"" : "\"warning\"");
+                out.write(",\"message\":{\"text\":");
+                json(out, message.text != null ? message.text : "");
+                out.write("},\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":");
+                json(out, document.uri);
+                out.write('}');
+                int line = position(message.line);
+                if (line > 0) {
+                    out.write(",\"region\":{\"startLine\":");
+                    out.write(String.valueOf(line));
+                    int column = position(message.column);
+                    if (column > 0) {
+                        out.write(",\"startColumn\":");
+                        out.write(String.valueOf(column));
+                    }
+                    out.write('}');
+                }
+                out.write("}}]}");
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            out.write("\n]}]}\n");
+            super.close();
+        }
+    }
+
+    /**
+     * A test suite with a test case per document, that fails if the document
+     * is invalid. The test cases are spooled to a part file, as the counts are
+     * needed before them.
+     */
+    private static final class JUnitWriter extends ReportWriter {
+
+        private final File part;
+
+        private int        tests;
+
+        private int        failures;
+
+        JUnitWriter(File file, String tool) throws IOException {
+            this(file, tool, new File(file.getPath() + ".part"));
+        }
+
+        private JUnitWriter(File file, String tool, File part) throws IOException {
+            super(file, tool, part);
+            this.part = part;
+        }
+
+        @Override
+        void write(Document document) throws IOException {
+            tests++;
+            out.write("  <testcase classname=\"");
+            xml(out, tool);
+            out.write("\" name=\"");
+            xml(out, document.uri);
+            out.write("\">\n");
+            if (!document.isValid()) {
+                failures++;
+                out.write("    <failure type=\"invalid\" message=\"");
+                out.write(document.errors + " errors");
+                out.write("\">");
+                writeMessages(document, true);
+                out.write("</failure>\n");
+            }
+            if (document.warnings > 0) {
+                out.write("    <system-out>");
+                writeMessages(document, false);
+                out.write("</system-out>\n");
+            }
+            out.write("  </testcase>\n");
+        }
+
+        private void writeMessages(Document document, boolean errors) throws IOException {
+            for (Message message : document.messages) {
+                if (message.error == errors) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(errors ? "[ERROR] " : "[WARNING] ");
+                    if (position(message.line) > 0) {
+                        sb.append("Line ").append(message.line);
+                        if (position(message.column) > 0) {
+                            sb.append(", Column ").append(message.column);
+                        }
+                        sb.append(": ");
+                    }
+                    sb.append(message.text);
+                    if (message.rule != null && message.rule.length() > 0) {
+                        sb.append(" (").append(message.rule).append(')');
+                    }
+                    sb.append('\n');
+                    xml(out, sb.toString());
+                }
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            super.close();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+            try {
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite name=\"");
+                xml(writer, tool);
+                writer.write("\" tests=\"" + tests + "\" failures=\"" + failures + "\" errors=\"0\">\n");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(part), UTF8));
+                try {
+                    char[] buffer = new char[8192];
+                    int read;
+                    while ((read = reader.read(buffer)) > 0) {
+                        writer.write(buffer, 0, read);
+                    }
+                } finally {
+                    reader.close();
+                }
+                writer.write("</testsuite>\n");
+            } finally {
+                writer.close();
+            }
+            if (!part.delete() && part.exists()) {
+                throw new IOException("can't delete " + part);
+            }
+        }
+    }
+}
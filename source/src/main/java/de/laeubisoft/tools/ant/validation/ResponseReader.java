@@ -0,0 +1,262 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.InputStream;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Base class for reading SOAP responses of the validators as a stream. Only
+ * the small header parts of a response are kept, every error and warning is
+ * unmarshalled on its own and handed out as soon as it is parsed, so the memory
+ * needed does not depend on the number of messages in the response.
+ * 
+ * @author Christoph Läubrich
+ */
+abstract class ResponseReader {
+
+    /**
+     * The namespace of the SOAP 1.2 envelope
+     */
+    static final String                           SOAP_NS   = "http://www.w3.org/2003/05/soap-envelope";
+
+    /**
+     * {@link XMLInputFactory} are expensive to create (a service lookup), once
+     * configured creating readers is thread safe in the common implementations
+     */
+    private static final XMLInputFactory          FACTORY   = createFactory();
+
+    private final String                          namespace;
+
+    private final String                          responseElement;
+
+    private final Class<?>                        objectFactory;
+
+    private Unmarshaller                          unmarshaller;
+
+    private XMLStreamReader                       reader;
+
+    /**
+     * @param namespace
+     *            the namespace of the validator response
+     * @param responseElement
+     *            the local name of the response element inside the SOAP body
+     * @param objectFactory
+     *            the ObjectFactory of the response schema
+     * @throws JAXBException
+     *             if the parser setup failed
+     */
+    ResponseReader(String namespace, String responseElement, Class<?> objectFactory) throws JAXBException {
+        this.namespace = namespace;
+        this.responseElement = responseElement;
+        this.objectFactory = objectFactory;
+        //fail early if the schema can't be loaded
+        Tools.getContext(objectFactory);
+    }
+
+    /**
+     * Reads the SOAP response from the given stream
+     * 
+     * @param stream
+     *            the stream to read from
+     * @return <code>true</code> if the body contained a validation response,
+     *         <code>false</code> otherwise
+     * @throws XMLStreamException
+     *             if the stream does not contain a valid SOAP response
+     * @throws JAXBException
+     *             if a message could not be unmarshalled
+     */
+    final boolean read(InputStream stream) throws XMLStreamException, JAXBException {
+        unmarshaller = Tools.borrowUnmarshaller(objectFactory);
+        reader = FACTORY.createXMLStreamReader(stream);
+        try {
+            if (!nextChild() || !isElement(SOAP_NS, "Envelope")) {
+                throw new XMLStreamException("response is not a SOAP envelope");
+            }
+            reader.next();
+            while (nextChild()) {
+                if (isElement(SOAP_NS, "Body")) {
+                    reader.next();
+                    while (nextChild()) {
+                        if (isElement(namespace, responseElement)) {
+                            readResponse();
+                            return true;
+                        }
+                        skip();
+                    }
+                    return false;
+                }
+                skip();
+            }
+            return false;
+        } finally {
+            Tools.returnUnmarshaller(objectFactory, unmarshaller);
+            unmarshaller = null;
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /**
+     * Reads the response element, the reader is positioned at its start
+     * element and must be positioned after its end element afterwards
+     * 
+     * @throws XMLStreamException
+     * @throws JAXBException
+     */
+    protected abstract void readResponse() throws XMLStreamException, JAXBException;
+
+    /**
+     * Moves to the next child element of the current element
+     * 
+     * @return <code>true</code> if the reader is positioned at the start of a
+     *         child element, <code>false</code> if it is positioned at the end
+     *         of the parent element
+     * @throws XMLStreamException
+     */
+    protected final boolean nextChild() throws XMLStreamException {
+        int event = reader.getEventType();
+        while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new XMLStreamException("unexpected end of response");
+            }
+            event = reader.next();
+        }
+        return event == XMLStreamConstants.START_ELEMENT;
+    }
+
+    /**
+     * Enters the current element so its children can be read with
+     * {@link #nextChild()}
+     * 
+     * @throws XMLStreamException
+     */
+    protected final void enter() throws XMLStreamException {
+        reader.next();
+    }
+
+    /**
+     * Leaves the current element, must be called once {@link #nextChild()}
+     * returned <code>false</code>
+     * 
+     * @throws XMLStreamException
+     */
+    protected final void leave() throws XMLStreamException {
+        reader.next();
+    }
+
+    /**
+     * @return the local name of the current element
+     */
+    protected final String name() {
+        return reader.getLocalName();
+    }
+
+    /**
+     * @param ns
+     *            the namespace of the attribute
+     * @param localName
+     *            the local name of the attribute
+     * @return the value of the given attribute of the current element or
+     *         <code>null</code>
+     */
+    protected final String attribute(String ns, String localName) {
+        return reader.getAttributeValue(ns, localName);
+    }
+
+    /**
+     * Reads the text content of the current element
+     * 
+     * @return the text
+     * @throws XMLStreamException
+     */
+    protected final String readText() throws XMLStreamException {
+        String text = reader.getElementText();
+        reader.next();
+        return text;
+    }
+
+    /**
+     * Reads the text content of the current element as xs:int
+     * 
+     * @return the value
+     * @throws XMLStreamException
+     */
+    protected final int readInt() throws XMLStreamException {
+        return Integer.parseInt(readText().trim());
+    }
+
+    /**
+     * Reads the text content of the current element as xs:boolean
+     * 
+     * @return the value
+     * @throws XMLStreamException
+     */
+    protected final boolean readBoolean() throws XMLStreamException {
+        String value = readText().trim();
+        return "true".equals(value) || "1".equals(value);
+    }
+
+    /**
+     * Unmarshalls the current element into the given type
+     * 
+     * @param type
+     * @return the unmarshalled object
+     * @throws JAXBException
+     */
+    protected final <T> T unmarshal(Class<T> type) throws JAXBException {
+        return unmarshaller.unmarshal(reader, type).getValue();
+    }
+
+    /**
+     * Skips the current element with all its children
+     * 
+     * @throws XMLStreamException
+     */
+    protected final void skip() throws XMLStreamException {
+        int depth = 0;
+        do {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        } while (depth >= 0);
+        reader.next();
+    }
+
+    private boolean isElement(String ns, String localName) {
+        return ns.equals(reader.getNamespaceURI()) && localName.equals(reader.getLocalName());
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+}
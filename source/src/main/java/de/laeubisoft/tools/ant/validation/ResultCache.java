@@ -0,0 +1,374 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An on-disk cache of validator responses, keyed by a digest of the validated
+ * document and all parameters that affect the result. The raw SOAP response is
+ * stored, so a cached result can be replayed through the same reader (and
+ * therefore the same logging) as a fresh one. The number of entries is bounded,
+ * the least recently used entries are evicted first.
+ * 
+ * @author Christoph Läubrich
+ */
+final class ResultCache {
+
+    /**
+     * Changing this invalidates all existing entries
+     */
+    private static final String                         FORMAT_VERSION = "1";
+
+    private static final String                         SUFFIX         = ".xml";
+
+    private static final ConcurrentMap<File, ResultCache> CACHES        = new ConcurrentHashMap<File, ResultCache>();
+
+    private final File                                  directory;
+
+    /**
+     * Known entries in LRU order (eldest first) mapped to their file
+     */
+    private final LinkedHashMap<String, File>           entries        = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+    private int                                         maxEntries;
+
+    private ResultCache(File directory) {
+        this.directory = directory;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            //restore the LRU order of the last run
+            Arrays.sort(files, new Comparator<File>() {
+
+                public int compare(File f1, File f2) {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                String name = file.getName();
+                if (file.isFile() && name.endsWith(SUFFIX)) {
+                    entries.put(name.substring(0, name.length() - SUFFIX.length()), file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cache for the given directory, all tasks using the same
+     * directory share one instance
+     * 
+     * @param directory
+     *            the directory to store the entries
+     * @param maxEntries
+     *            the maximum number of entries to keep
+     * @return the cache
+     * @throws IOException
+     *             if the directory can't be created
+     */
+    static ResultCache get(File directory, int maxEntries) throws IOException {
+        File dir = directory.getCanonicalFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create cache directory " + dir);
+        }
+        ResultCache cache = CACHES.get(dir);
+        if (cache == null) {
+            ResultCache newCache = new ResultCache(dir);
+            cache = CACHES.putIfAbsent(dir, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        cache.setMaxEntries(maxEntries);
+        return cache;
+    }
+
+    /**
+     * Creates a new builder for a cache key
+     * 
+     * @return the builder
+     */
+    static KeyBuilder key() {
+        return new KeyBuilder();
+    }
+
+    /**
+     * Opens the cached response for the given key
+     * 
+     * @param key
+     * @return the stream to read the response from, or <code>null</code> if
+     *         nothing is cached for this key
+     */
+    InputStream open(String key) {
+        File file;
+        synchronized (this) {
+            file = entries.get(key);
+            if (file == null) {
+                return null;
+            }
+            //persist the access for the LRU order of the next run
+            file.setLastModified(System.currentTimeMillis());
+        }
+        try {
+            return new BufferedInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            //removed behind our back
+            synchronized (this) {
+                entries.remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Wraps the given response stream, so everything read from it is recorded
+     * for the given key
+     * 
+     * @param key
+     * @param response
+     * @return the recording stream
+     * @throws IOException
+     *             if the entry can't be created
+     */
+    Recorder record(String key, InputStream response) throws IOException {
+        return new Recorder(key, response);
+    }
+
+    /**
+     * Removes the entry for the given key if there is one
+     * 
+     * @param key
+     */
+    synchronized void remove(String key) {
+        File file = entries.remove(key);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        evict();
+    }
+
+    private synchronized void add(String key, File tmp) throws IOException {
+        File file = new File(directory, key + SUFFIX);
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("can't store cache entry " + file);
+        }
+        entries.put(key, file);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, File>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            Map.Entry<String, File> eldest = iterator.next();
+            eldest.getValue().delete();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Records a response while it is read, the entry is only added to the cache
+     * if {@link #commit()} is called
+     */
+    final class Recorder extends FilterInputStream {
+
+        private final String       key;
+
+        private final File         tmp;
+
+        private final OutputStream out;
+
+        private boolean            done;
+
+        Recorder(String key, InputStream in) throws IOException {
+            super(in);
+            this.key = key;
+            this.tmp = File.createTempFile(key, ".tmp", directory);
+            this.out = new BufferedOutputStream(new FileOutputStream(tmp));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                out.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                out.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //we must see every byte
+            long skipped = 0;
+            while (skipped < n && read() >= 0) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Records the remainder of the response and adds the entry to the
+         * cache
+         * 
+         * @throws IOException
+         */
+        void commit() throws IOException {
+            if (done) {
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                //just record it...
+            }
+            done = true;
+            out.close();
+            add(key, tmp);
+        }
+
+        /**
+         * Discards the recording if it was not committed
+         */
+        void discard() {
+            if (!done) {
+                done = true;
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //we delete it anyways
+                }
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Builds a cache key from the parts that affect the validation result
+     */
+    static final class KeyBuilder {
+
+        private final MessageDigest digest;
+
+        private KeyBuilder() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is a required algorithm", e);
+            }
+            add(FORMAT_VERSION);
+        }
+
+        /**
+         * Adds a string, <code>null</code> is distinct from all other values
+         * 
+         * @param value
+         * @return this builder
+         */
+        KeyBuilder add(String value) {
+            if (value == null) {
+                digest.update((byte) 0);
+            } else {
+                digest.update((byte) 1);
+                bytes(value);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the content of the given file
+         * 
+         * @param file
+         * @return this builder
+         * @throws IOException
+         */
+        KeyBuilder add(File file) throws IOException {
+            InputStream stream = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = stream.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                stream.close();
+            }
+            return add(file.getName());
+        }
+
+        private void bytes(String value) {
+            try {
+                byte[] bytes = value.getBytes("UTF-8");
+                digest.update(Integer.toString(bytes.length).getBytes("UTF-8"));
+                digest.update((byte) ':');
+                digest.update(bytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is a required encoding", e);
+            }
+        }
+
+        /**
+         * @return the key as hex string
+         */
+        String build() {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+    }
+}
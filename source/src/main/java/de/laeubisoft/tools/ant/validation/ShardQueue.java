@@ -0,0 +1,710 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchanges the URLs of a crawl that is split across several processes (e.g.
+ * build agents) through a shared directory. Every URL is owned by exactly one
+ * shard, chosen by a consistent hash of the normalized URL. Links owned by
+ * another shard are appended to a queue file only written by this shard and
+ * only read by the owner. Each shard publishes how many URLs it has sent to
+ * and consumed from every other shard, the crawl is finished once all shards
+ * are idle and every sent URL was consumed, observed twice in a row. URLs sent
+ * to a shard that is done already (as its budget was exhausted) are never
+ * consumed, they don't keep the others waiting. Each running shard touches its
+ * status file regularly, a shard whose status file did not appear or did not
+ * change within the timeout is considered failed, so a killed process does
+ * not stall the others forever. Only the changes of the modification time
+ * are compared, so the clocks of the processes don't need to agree. The
+ * results of the pages are written to one file per shard, which are combined
+ * by {@link #merge(File)}.
+ * 
+ * <pre>
+ * queue-&lt;to&gt;-&lt;from&gt;   URLs sent from one shard to another, one per line with its depth
+ * status-&lt;shard&gt;       state and counters of a shard
+ * result-&lt;shard&gt;       the checked pages and stylesheets of a shard, one per line
+ * </pre>
+ * 
+ * Stylesheets are sent with the depth <code>-1</code>.
+ * 
+ * Shards are numbered from <code>1</code> to the number of shards.
+ * 
+ * @author Christoph Läubrich
+ */
+final class ShardQueue {
+
+    private static final String ACTIVE             = "active";
+
+    private static final String IDLE               = "idle";
+
+    private static final String DONE               = "done";
+
+    private static final String FAILED             = "failed";
+
+    private static final String UTF8               = "UTF-8";
+
+    /**
+     * How often a shard touches its status file at most, in milliseconds
+     */
+    private static final long   HEARTBEAT_INTERVAL = 10000;
+
+    /**
+     * Prefix of the results of stylesheets
+     */
+    private static final String STYLESHEET         = "stylesheet ";
+
+    private final File          directory;
+
+    private final int           shard;
+
+    private final int           shards;
+
+    private final Writer[]      outboxes;
+
+    private final long[]        sent;
+
+    private final long[]        consumed;
+
+    /**
+     * Read positions in the queue files of the other shards
+     */
+    private final long[]        offsets;
+
+    private final Writer        results;
+
+    /**
+     * The timeout for the other shards in nanoseconds
+     */
+    private final long          timeout;
+
+    private final Timer         heartbeat;
+
+    /**
+     * The modification time of the status files of the other shards when they
+     * were read the last time, <code>0</code> if there was none
+     */
+    private final long[]        modified;
+
+    /**
+     * When {@link #modified} changed the last time
+     */
+    private final long[]        changed;
+
+    private String              state;
+
+    private int                 checked;
+
+    private int                 invalid;
+
+    private int                 checkedStylesheets;
+
+    private int                 invalidStylesheets;
+
+    /**
+     * The status of all shards seen by the last call of {@link #isFinished()}
+     */
+    private List<String>        lastScan;
+
+    /**
+     * @param directory
+     *            the shared directory, it must not contain files of an earlier
+     *            crawl
+     * @param shard
+     *            this shard, from <code>1</code> to <code>shards</code>
+     * @param shards
+     *            the number of shards
+     * @param timeout
+     *            the time in milliseconds after that another shard that did
+     *            not start or does not touch its status file is considered
+     *            failed
+     * @throws IOException
+     *             if the directory can't be used
+     */
+    ShardQueue(File directory, int shard, int shards, long timeout) throws IOException {
+        this.directory = directory;
+        this.shard = shard;
+        this.shards = shards;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        outboxes = new Writer[shards + 1];
+        sent = new long[shards + 1];
+        consumed = new long[shards + 1];
+        offsets = new long[shards + 1];
+        modified = new long[shards + 1];
+        changed = new long[shards + 1];
+        Arrays.fill(changed, System.nanoTime());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create directory " + directory);
+        }
+        File resultFile = new File(directory, "result-" + shard);
+        if (resultFile.exists() || new File(directory, "status-" + shard).exists()) {
+            throw new IOException("shard " + shard + " already ran in " + directory + ", each crawl needs an empty directory");
+        }
+        results = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resultFile), UTF8));
+        writeStatus(ACTIVE);
+        final File statusFile = new File(directory, "status-" + shard);
+        long interval = Math.max(1000, Math.min(HEARTBEAT_INTERVAL, timeout / 4));
+        heartbeat = new Timer("shard-" + shard + "-heartbeat", true);
+        heartbeat.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                //the status is only rewritten on changes, a shard busy with a slow page must still show it is alive
+                statusFile.setLastModified(System.currentTimeMillis());
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Parses a shard specification like <code>3/8</code>
+     * 
+     * @param specification
+     * @return the shard and the number of shards or <code>null</code> if the
+     *         specification is invalid
+     */
+    static int[] parse(String specification) {
+        int slash = specification.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        try {
+            int shard = Integer.parseInt(specification.substring(0, slash).trim());
+            int shards = Integer.parseInt(specification.substring(slash + 1).trim());
+            if (shards < 1 || shard < 1 || shard > shards) {
+                return null;
+            }
+            return new int[] { shard, shards };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the shard owning the given URL, with a jump consistent hash
+     * (Lamping and Veach), so changing the number of shards moves as few URLs
+     * as possible to another shard
+     * 
+     * @param url
+     *            a normalized URL
+     * @param shards
+     *            the number of shards
+     * @return the shard, from <code>1</code> to <code>shards</code>
+     */
+    static int owner(String url, int shards) {
+        long key = Frontier.hash(url);
+        long b = -1;
+        long j = 0;
+        while (j < shards) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b + 1;
+    }
+
+    /**
+     * @return this shard and the number of shards, like <code>3/8</code>
+     */
+    String getName() {
+        return shard + "/" + shards;
+    }
+
+    /**
+     * @param url
+     *            a normalized URL
+     * @return <code>true</code> if this shard has to check the given URL
+     */
+    boolean owns(String url) {
+        return owner(url, shards) == shard;
+    }
+
+    /**
+     * A URL received from another shard
+     */
+    static final class Link {
+
+        private final String url;
+
+        private final int    depth;
+
+        Link(String url, int depth) {
+            this.url = url;
+            this.depth = depth;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        int getDepth() {
+            return depth;
+        }
+    }
+
+    /**
+     * Hands the given URL over to the shard owning it
+     * 
+     * @param url
+     *            a normalized URL owned by another shard
+     * @param depth
+     *            the crawl depth of the URL
+     * @throws IOException
+     */
+    void send(String url, int depth) throws IOException {
+        int target = owner(url, shards);
+        Writer outbox = outboxes[target];
+        if (outbox == null) {
+            outbox = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, "queue-" + target + "-" + shard)), UTF8));
+            outboxes[target] = outbox;
+        }
+        outbox.write(String.valueOf(depth));
+        outbox.write(' ');
+        outbox.write(url);
+        outbox.write('\n');
+        sent[target]++;
+    }
+
+    /**
+     * Makes all sent URLs visible to their owners
+     * 
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        for (Writer outbox : outboxes) {
+            if (outbox != null) {
+                outbox.flush();
+            }
+        }
+    }
+
+    /**
+     * Reads the URLs other shards have sent since the last call
+     * 
+     * @return the URLs, might be empty
+     * @throws IOException
+     */
+    List<Link> receive() throws IOException {
+        List<Link> urls = new ArrayList<Link>();
+        for (int from = 1; from <= shards; from++) {
+            File file = new File(directory, "queue-" + shard + "-" + from);
+            if (from == shard || file.length() <= offsets[from]) {
+                continue;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(offsets[from]);
+                byte[] bytes = new byte[(int) (raf.length() - offsets[from])];
+                raf.readFully(bytes);
+                //only complete lines, the writer might be in the middle of one
+                int end = bytes.length;
+                while (end > 0 && bytes[end - 1] != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    continue;
+                }
+                offsets[from] += end;
+                for (String line : new String(bytes, 0, end - 1, UTF8).split("\n")) {
+                    int space = line.indexOf(' ');
+                    urls.add(new Link(line.substring(space + 1), Integer.parseInt(line.substring(0, space))));
+                    consumed[from]++;
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        if (!urls.isEmpty() && !ACTIVE.equals(state)) {
+            writeStatus(ACTIVE);
+        }
+        return urls;
+    }
+
+    /**
+     * Records the result of a checked page
+     * 
+     * @param url
+     *            the normalized URL
+     * @param valid
+     *            the validity of the page or <code>null</code> if it was not
+     *            checked because it is of wrong type
+     * @throws IOException
+     */
+    void record(String url, Boolean valid) throws IOException {
+        writeResult("", url, valid);
+        checked++;
+        if (valid != null && !valid.booleanValue()) {
+            invalid++;
+        }
+    }
+
+    /**
+     * Records the result of a checked stylesheet, they are counted apart from
+     * the pages
+     * 
+     * @param name
+     *            the normalized URL of a linked stylesheet, or the name of a
+     *            <code>style</code> element
+     * @param valid
+     *            the validity of the stylesheet or <code>null</code> if it was
+     *            not checked
+     * @throws IOException
+     */
+    void recordStylesheet(String name, Boolean valid) throws IOException {
+        writeResult(STYLESHEET, name, valid);
+        checkedStylesheets++;
+        if (valid != null && !valid.booleanValue()) {
+            invalidStylesheets++;
+        }
+    }
+
+    private void writeResult(String prefix, String url, Boolean valid) throws IOException {
+        results.write(prefix);
+        results.write(valid == null ? "skipped " : valid.booleanValue() ? "valid " : "invalid ");
+        results.write(url);
+        results.write('\n');
+    }
+
+    /**
+     * @return the number of pages recorded by this shard
+     */
+    int getChecked() {
+        return checked;
+    }
+
+    /**
+     * @return the number of invalid pages recorded by this shard
+     */
+    int getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * @return the number of stylesheets recorded by this shard
+     */
+    int getCheckedStylesheets() {
+        return checkedStylesheets;
+    }
+
+    /**
+     * @return the number of invalid stylesheets recorded by this shard
+     */
+    int getInvalidStylesheets() {
+        return invalidStylesheets;
+    }
+
+    /**
+     * @return the number of URLs handed over to other shards
+     */
+    long getSent() {
+        long total = 0;
+        for (long count : sent) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Publishes that this shard has nothing to do and checks if the whole
+     * crawl is finished, must be called repeatedly while idle
+     * 
+     * @return <code>true</code> if all shards are idle and all sent URLs were
+     *         consumed
+     * @throws IOException
+     *             if the directory can't be accessed or another shard failed
+     */
+    boolean isFinished() throws IOException {
+        flush();
+        results.flush();
+        writeStatus(IDLE);
+        List<String> scan = new ArrayList<String>();
+        long[][] counters = new long[shards + 1][];
+        for (int i = 1; i <= shards; i++) {
+            String status = readStatus(i);
+            checkAlive(i, status);
+            if (status == null) {
+                //not started yet (or just replacing its status)
+                lastScan = null;
+                return false;
+            }
+            String[] fields = status.split(" ");
+            if (FAILED.equals(fields[0])) {
+                throw new IOException("shard " + i + "/" + shards + " failed, the crawl is incomplete");
+            }
+            if (!IDLE.equals(fields[0]) && !DONE.equals(fields[0])) {
+                lastScan = null;
+                return false;
+            }
+            counters[i] = new long[fields.length - 1];
+            for (int k = 1; k < fields.length; k++) {
+                counters[i][k - 1] = Long.parseLong(fields[k]);
+            }
+            scan.add(status);
+        }
+        for (int from = 1; from <= shards; from++) {
+            for (int to = 1; to <= shards; to++) {
+                //counters hold sent[1..n] followed by consumed[1..n], a shard that is done won't consume any more
+                if (counters[from][to - 1] != counters[to][shards + from - 1] && !DONE.equals(scan.get(to - 1).split(" ")[0])) {
+                    lastScan = null;
+                    return false;
+                }
+            }
+        }
+        boolean stable = scan.equals(lastScan);
+        lastScan = scan;
+        return stable;
+    }
+
+    /**
+     * Checks that the given shard has started and touched its status file
+     * within the timeout, unless it is done
+     * 
+     * @param i
+     *            the other shard
+     * @param status
+     *            its current status
+     * @throws IOException
+     *             if the shard is considered failed
+     */
+    private void checkAlive(int i, String status) throws IOException {
+        if (i == shard || status != null && DONE.equals(status.split(" ")[0])) {
+            return;
+        }
+        long now = System.nanoTime();
+        long lastModified = new File(directory, "status-" + i).lastModified();
+        if (lastModified != modified[i]) {
+            modified[i] = lastModified;
+            changed[i] = now;
+        } else if (now - changed[i] > timeout) {
+            long seconds = TimeUnit.NANOSECONDS.toSeconds(timeout);
+            if (lastModified == 0) {
+                throw new IOException("shard " + i + "/" + shards + " did not start within " + seconds + " seconds, the crawl is incomplete");
+            }
+            throw new IOException("shard " + i + "/" + shards + " did not show any sign of life for " + seconds + " seconds, the crawl is incomplete");
+        }
+    }
+
+    /**
+     * Closes the files of this shard
+     * 
+     * @param complete
+     *            <code>true</code> if the shard finished, <code>false</code>
+     *            if it failed, the other shards stop then
+     * @throws IOException
+     */
+    void close(boolean complete) throws IOException {
+        heartbeat.cancel();
+        try {
+            for (Writer outbox : outboxes) {
+                if (outbox != null) {
+                    outbox.close();
+                }
+            }
+            results.close();
+        } finally {
+            writeStatus(complete ? DONE : FAILED);
+        }
+    }
+
+    private void writeStatus(String newState) throws IOException {
+        StringBuilder sb = new StringBuilder(newState);
+        for (int i = 1; i <= shards; i++) {
+            sb.append(' ').append(sent[i]);
+        }
+        for (int i = 1; i <= shards; i++) {
+            sb.append(' ').append(consumed[i]);
+        }
+        File file = new File(directory, "status-" + shard);
+        File tmp = new File(directory, "status-" + shard + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            //some platforms can't replace files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't write " + file);
+            }
+        }
+        state = newState;
+    }
+
+    private String readStatus(int i) throws IOException {
+        return readStatus(new File(directory, "status-" + i));
+    }
+
+    /**
+     * @return the content of the given status file or <code>null</code> if
+     *         there is none (or it is replaced right now)
+     */
+    private static String readStatus(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            return new String(Tools.readFully(in), UTF8).trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The combined results of all shards of a crawl
+     */
+    static final class Merged {
+
+        private final List<String> invalid            = new ArrayList<String>();
+
+        private final List<String> problems           = new ArrayList<String>();
+
+        private final List<String> invalidStylesheets = new ArrayList<String>();
+
+        private int                valid;
+
+        private int                skipped;
+
+        private int                validStylesheets;
+
+        private int                shards;
+
+        /**
+         * @return the invalid pages sorted by URL
+         */
+        List<String> getInvalid() {
+            return invalid;
+        }
+
+        /**
+         * @return the invalid stylesheets sorted by name
+         */
+        List<String> getInvalidStylesheets() {
+            return invalidStylesheets;
+        }
+
+        /**
+         * @return shards that are missing, failed or did not finish
+         */
+        List<String> getProblems() {
+            return problems;
+        }
+
+        int getValid() {
+            return valid;
+        }
+
+        int getSkipped() {
+            return skipped;
+        }
+
+        int getValidStylesheets() {
+            return validStylesheets;
+        }
+
+        int getShards() {
+            return shards;
+        }
+    }
+
+    /**
+     * Combines the results of all shards of a crawl
+     * 
+     * @param directory
+     *            the shared directory of the crawl
+     * @return the combined results
+     * @throws IOException
+     *             if the results can't be read
+     */
+    static Merged merge(File directory) throws IOException {
+        Merged merged = new Merged();
+        int expected = 0;
+        for (int i = 1; expected == 0 || i <= expected; i++) {
+            String status = readStatus(new File(directory, "status-" + i));
+            if (status == null) {
+                if (expected == 0) {
+                    //the number of shards is not known without any status
+                    merged.problems.add("no shard results found in " + directory);
+                    break;
+                }
+                merged.problems.add("shard " + i + "/" + expected + " did not run");
+                continue;
+            }
+            String[] fields = status.split(" ");
+            if (expected == 0) {
+                //the status holds sent and consumed counters for every shard
+                expected = (fields.length - 1) / 2;
+            }
+            merged.shards++;
+            if (!DONE.equals(fields[0])) {
+                merged.problems.add("shard " + i + "/" + expected + " did not finish (" + fields[0] + ")");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(directory, "result-" + i)), UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(STYLESHEET)) {
+                        line = line.substring(STYLESHEET.length());
+                        if (line.startsWith("invalid ")) {
+                            merged.invalidStylesheets.add(line.substring("invalid ".length()));
+                        } else if (line.startsWith("valid ")) {
+                            merged.validStylesheets++;
+                        }
+                    } else if (line.startsWith("invalid ")) {
+                        merged.invalid.add(line.substring("invalid ".length()));
+                    } else if (line.startsWith("valid ")) {
+                        merged.valid++;
+                    } else if (line.startsWith("skipped ")) {
+                        merged.skipped++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        Collections.sort(merged.invalid);
+        Collections.sort(merged.invalidStylesheets);
+        return merged;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+/**
+ * Just a Helper class for Ant to hand the settings for checking the
+ * stylesheets found while recursing over to us...
+ * 
+ * @author Christoph Läubrich
+ */
+public class Stylesheets {
+
+    private String               validator;
+
+    private String               profile;
+
+    private String               usermedium;
+
+    private String               warningLevel;
+
+    private String               lang;
+
+    private W3CCSSValidationTask task;
+
+    /**
+     * @param validator
+     *            the URL of the CSS validator (or several separated by
+     *            commas), the public one if not given
+     */
+    public void setValidator(String validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * @param profile
+     *            the CSS profile, e.g. <code>css3</code>
+     */
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * @param usermedium
+     *            the medium, e.g. <code>screen</code>
+     */
+    public void setUsermedium(String usermedium) {
+        this.usermedium = usermedium;
+    }
+
+    /**
+     * @param warningLevel
+     *            the amount of warnings, see
+     *            {@link W3CCSSValidationTask#setWarningLevel(String)}
+     */
+    public void setWarningLevel(String warningLevel) {
+        this.warningLevel = warningLevel;
+    }
+
+    /**
+     * @param lang
+     *            the language of the messages
+     */
+    public void setLang(String lang) {
+        this.lang = lang;
+    }
+
+    /**
+     * Creates the CSS validation task with these settings for the given task
+     * 
+     * @param owner
+     * @throws org.apache.tools.ant.BuildException
+     */
+    void attachTo(AbstractValidationTask owner) {
+        task = new W3CCSSValidationTask();
+        if (validator != null) {
+            task.setValidator(validator);
+        }
+        task.setProfile(profile);
+        task.setUsermedium(usermedium);
+        task.setWarningLevel(warningLevel);
+        task.setLang(lang);
+        task.attachTo(owner);
+    }
+
+    /**
+     * @return the CSS validation task created by
+     *         {@link #attachTo(AbstractValidationTask)}
+     */
+    W3CCSSValidationTask getTask() {
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return "stylesheets " + (validator != null ? validator : "(public validator)");
+    }
+}
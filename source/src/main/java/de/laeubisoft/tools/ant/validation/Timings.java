@@ -0,0 +1,474 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Collects how long the phases of the requests of a task take, each phase (per
+ * validator endpoint where it applies) has a histogram with logarithmic
+ * buckets that are about 19% wide, so percentiles can be computed without
+ * keeping the samples. Recording is lock free as it happens on the worker
+ * threads.
+ * 
+ * @author Christoph Läubrich
+ */
+final class Timings {
+
+    /**
+     * The phases of a request
+     */
+    enum Phase {
+        /**
+         * Waiting for the rate limit, a free slot of the validator or a retry
+         */
+        WAIT,
+        /**
+         * Downloading a page or stylesheet and extracting its links
+         */
+        FETCH,
+        /**
+         * Sending the content of a file or page to the validator
+         */
+        UPLOAD,
+        /**
+         * From the request being sent until the response headers of the
+         * validator arrive
+         */
+        VALIDATOR,
+        /**
+         * Reading and unmarshalling the response of the validator
+         */
+        PARSE,
+        /**
+         * Writing the buffered output of a document to the log and the reports
+         */
+        LOG;
+
+        String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Buckets per doubling of the duration
+     */
+    private static final int                  RESOLUTION  = 4;
+
+    /**
+     * Number of buckets, the last one is 2<sup>40</sup> microseconds (about
+     * twelve days)
+     */
+    private static final int                  BUCKETS     = 40 * RESOLUTION + 1;
+
+    /**
+     * The upper bounds of the buckets in the Prometheus export, in seconds
+     */
+    private static final double[]             BOUNDS      = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private static final double[]             PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    private final ConcurrentMap<String, Stat> stats       = new ConcurrentHashMap<String, Stat>();
+
+    /**
+     * The histogram of a single phase
+     */
+    static final class Stat {
+
+        private final Phase           phase;
+
+        private final String          endpoint;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Counts per bucket of {@link Timings#BOUNDS}, the last one is
+         * <code>+Inf</code>
+         */
+        private final AtomicLongArray bounds  = new AtomicLongArray(BOUNDS.length + 1);
+
+        private final AtomicLong      count   = new AtomicLong();
+
+        private final AtomicLong      total   = new AtomicLong();
+
+        private final AtomicLong      max     = new AtomicLong();
+
+        private final AtomicLong      bytes   = new AtomicLong();
+
+        Stat(Phase phase, String endpoint) {
+            this.phase = phase;
+            this.endpoint = endpoint;
+        }
+
+        void record(long nanos, long transferred) {
+            nanos = Math.max(0, nanos);
+            double micros = nanos / 1000.0;
+            int bucket = micros <= 1 ? 0 : (int) Math.min(BUCKETS - 1, Math.ceil(RESOLUTION * Math.log(micros) / Math.log(2)));
+            buckets.incrementAndGet(bucket);
+            double seconds = nanos / 1e9;
+            int bound = 0;
+            while (bound < BOUNDS.length && seconds > BOUNDS[bound]) {
+                bound++;
+            }
+            bounds.incrementAndGet(bound);
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            bytes.addAndGet(transferred);
+            long current;
+            while ((current = max.get()) < nanos && !max.compareAndSet(current, nanos)) {
+                //retry
+            }
+        }
+
+        Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return the validator endpoint or <code>null</code> if the phase is
+         *         not bound to one
+         */
+        String getEndpoint() {
+            return endpoint;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getTotal() {
+            return total.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @param percentile
+         *            between <code>0</code> and <code>1</code>
+         * @return the upper bound of the bucket the given percentile falls in
+         *         (but at most the maximum) in nanoseconds
+         */
+        long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * count.get());
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max.get(), (long) (Math.pow(2, (double) i / RESOLUTION) * 1000));
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * Records the duration of a phase
+     * 
+     * @param phase
+     * @param endpoint
+     *            the validator endpoint or <code>null</code>
+     * @param nanos
+     *            the duration
+     * @param bytes
+     *            the number of bytes transferred
+     */
+    void record(Phase phase, String endpoint, long nanos, long bytes) {
+        String key = phase.getName() + '\u0000' + (endpoint != null ? endpoint : "");
+        Stat stat = stats.get(key);
+        if (stat == null) {
+            Stat newStat = new Stat(phase, endpoint);
+            stat = stats.putIfAbsent(key, newStat);
+            if (stat == null) {
+                stat = newStat;
+            }
+        }
+        stat.record(nanos, bytes);
+    }
+
+    /**
+     * @return the histograms in the order of the phases
+     */
+    List<Stat> getStats() {
+        List<Stat> list = new ArrayList<Stat>(stats.values());
+        Collections.sort(list, new Comparator<Stat>() {
+
+            public int compare(Stat o1, Stat o2) {
+                if (o1.phase != o2.phase) {
+                    return o1.phase.compareTo(o2.phase);
+                }
+                String e1 = o1.endpoint != null ? o1.endpoint : "";
+                String e2 = o2.endpoint != null ? o2.endpoint : "";
+                return e1.compareTo(e2);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return a line per phase with the count, the bytes transferred and the
+     *         percentiles of the duration
+     */
+    List<String> summary() {
+        List<String> lines = new ArrayList<String>();
+        for (Stat stat : getStats()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(stat.phase.getName());
+            if (stat.endpoint != null) {
+                sb.append(' ').append(stat.endpoint);
+            }
+            sb.append(": ").append(stat.getCount()).append(" times");
+            if (stat.getBytes() > 0) {
+                sb.append(", ").append(formatBytes(stat.getBytes()));
+            }
+            sb.append(", total ").append(formatNanos(stat.getTotal()));
+            for (double percentile : PERCENTILES) {
+                sb.append(", p").append(Math.round(percentile * 100)).append(' ').append(formatNanos(stat.getPercentile(percentile)));
+            }
+            sb.append(", max ").append(formatNanos(stat.getMax()));
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Writes all histograms to the given file
+     * 
+     * @param file
+     * @param format
+     *            <code>json</code> or <code>prometheus</code>
+     * @param tool
+     *            the name of the task
+     * @throws IOException
+     */
+    void write(File file, String format, String tool) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("can't create directory " + parent);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            if ("prometheus".equals(format)) {
+                writePrometheus(out, tool);
+            } else {
+                writeJson(out, tool);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeJson(Writer out, String tool) throws IOException {
+        out.write("{\"tool\":");
+        ReportWriter.json(out, tool);
+        out.write(",\"phases\":[");
+        boolean first = true;
+        for (Stat stat : getStats()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("\n{\"phase\":");
+            ReportWriter.json(out, stat.phase.getName());
+            out.write(",\"endpoint\":");
+            ReportWriter.json(out, stat.endpoint);
+            out.write(",\"count\":" + stat.getCount());
+            out.write(",\"bytes\":" + stat.getBytes());
+            out.write(",\"totalMillis\":" + millis(stat.getTotal()));
+            for (double percentile : PERCENTILES) {
+                out.write(",\"p" + Math.round(percentile * 100) + "Millis\":" + millis(stat.getPercentile(percentile)));
+            }
+            out.write(",\"maxMillis\":" + millis(stat.getMax()));
+            out.write('}');
+        }
+        out.write("\n]}\n");
+    }
+
+    private void writePrometheus(Writer out, String tool) throws IOException {
+        List<Stat> list = getStats();
+        out.write("# HELP validation_phase_seconds Duration of the phases of the requests\n");
+        out.write("# TYPE validation_phase_seconds histogram\n");
+        for (Stat stat : list) {
+            long cumulative = 0;
+            for (int i = 0; i <= BOUNDS.length; i++) {
+                cumulative += stat.bounds.get(i);
+                out.write("validation_phase_seconds_bucket{" + labels(stat, tool) + ",le=\"" + (i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf") + "\"} " + cumulative + "\n");
+            }
+            out.write("validation_phase_seconds_sum{" + labels(stat, tool) + "} " + stat.getTotal() / 1e9 + "\n");
+            out.write("validation_phase_seconds_count{" + labels(stat, tool) + "} " + stat.getCount() + "\n");
+        }
+        out.write("# HELP validation_phase_bytes_total Bytes transferred in the phases of the requests\n");
+        out.write("# TYPE validation_phase_bytes_total counter\n");
+        for (Stat stat : list) {
+            out.write("validation_phase_bytes_total{" + labels(stat, tool) + "} " + stat.getBytes() + "\n");
+        }
+    }
+
+    private static String labels(Stat stat, String tool) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tool=\"").append(escapeLabel(tool)).append("\",phase=\"").append(stat.phase.getName()).append('"');
+        if (stat.endpoint != null) {
+            sb.append(",endpoint=\"").append(escapeLabel(stat.endpoint)).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String millis(long nanos) {
+        return String.valueOf(Math.round(nanos / 1000.0) / 1000.0);
+    }
+
+    private static String formatNanos(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= 10000) {
+            return (millis / 1000) + " s";
+        }
+        if (millis < 10) {
+            return String.format(Locale.ENGLISH, "%.2f ms", Double.valueOf(nanos / 1e6));
+        }
+        return millis + " ms";
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 10 * 1024 * 1024) {
+            return (bytes / (1024 * 1024)) + " MB";
+        }
+        if (bytes >= 10 * 1024) {
+            return (bytes / 1024) + " KB";
+        }
+        return bytes + " bytes";
+    }
+
+    /**
+     * Counts the bytes read from a stream
+     */
+    static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Measures how long writing the body of a request takes, the time of the
+     * last write can be taken once the request was executed
+     */
+    static final class TimedEntity implements RequestEntity {
+
+        private final RequestEntity entity;
+
+        private long                nanos = -1;
+
+        TimedEntity(RequestEntity entity) {
+            this.entity = entity;
+        }
+
+        public boolean isRepeatable() {
+            return entity.isRepeatable();
+        }
+
+        public void writeRequest(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            try {
+                entity.writeRequest(out);
+            } finally {
+                nanos = System.nanoTime() - start;
+            }
+        }
+
+        public long getContentLength() {
+            return entity.getContentLength();
+        }
+
+        public String getContentType() {
+            return entity.getContentType();
+        }
+
+        /**
+         * @return the duration of the last write in nanoseconds, or
+         *         <code>-1</code> if the body was not written since the last
+         *         call
+         */
+        long takeNanos() {
+            long taken = nanos;
+            nanos = -1;
+            return taken;
+        }
+    }
+}
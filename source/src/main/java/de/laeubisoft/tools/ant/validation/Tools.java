@@ -22,28 +22,205 @@
  */
 package de.laeubisoft.tools.ant.validation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.FilePartSource;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.w3.soap.envelope.Envelope;
 
 /**
  * @author Christoph Läubrich
  */
 public class Tools {
 
+    /**
+     * How many distinct hosts (validator, crawled site, ...) should be able to
+     * use their full share of connections at the same time
+     */
+    private static final int                                              POOLED_HOSTS       = 4;
+
+    /**
+     * The pool of (keep-alive) connections shared by all tasks
+     */
+    private static final MultiThreadedHttpConnectionManager               CONNECTION_MANAGER = new MultiThreadedHttpConnectionManager();
+
+    private static final HttpClient                                       HTTP_CLIENT        = new HttpClient(CONNECTION_MANAGER);
+
+    /**
+     * The {@link JAXBContext}s for the SOAP responses, keyed by the
+     * ObjectFactory of the response schema
+     */
+    private static final ConcurrentMap<Class<?>, FutureTask<JAXBContext>> CONTEXTS           = new ConcurrentHashMap<Class<?>, FutureTask<JAXBContext>>();
+
+    /**
+     * {@link Unmarshaller} are not thread safe, but can be reused, the idle
+     * ones are pooled by the ObjectFactory of the response schema (not held per
+     * thread, as a virtual thread per page would create a new one each time)
+     */
+    private static final ConcurrentMap<Class<?>, Queue<Unmarshaller>>     UNMARSHALLERS      = new ConcurrentHashMap<Class<?>, Queue<Unmarshaller>>();
+
+    /**
+     * Returns the {@link HttpClient} shared by all tasks, every method executed
+     * with it must be released after use to return the connection to the pool
+     * 
+     * @return the shared client
+     */
+    static HttpClient getHttpClient() {
+        return HTTP_CLIENT;
+    }
+
+    /**
+     * Configures the pool of the shared {@link HttpClient}
+     * 
+     * @param maxConnectionsPerHost
+     *            the maximum number of connections per host
+     * @param connectTimeout
+     *            the timeout in milliseconds until a connection is established
+     */
+    static synchronized void configureConnections(int maxConnectionsPerHost, int connectTimeout) {
+        HttpConnectionManagerParams params = CONNECTION_MANAGER.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(Math.max(params.getMaxTotalConnections(), maxConnectionsPerHost * POOLED_HOSTS));
+        params.setConnectionTimeout(connectTimeout);
+    }
+
+    /**
+     * Returns the (shared) {@link JAXBContext} for SOAP responses of the
+     * schema represented by the given ObjectFactory, the context is created on
+     * first access
+     * 
+     * @param objectFactory
+     *            the ObjectFactory of the response schema
+     * @return the context
+     * @throws JAXBException
+     *             if the context can't be created
+     */
+    static JAXBContext getContext(Class<?> objectFactory) throws JAXBException {
+        FutureTask<JAXBContext> task = contextTask(objectFactory);
+        //if no one else is building it (yet) we do it ourself
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JAXBException("interrupted while waiting for the context", e);
+        } catch (ExecutionException e) {
+            //don't remember the failure, the next one might try again
+            CONTEXTS.remove(objectFactory, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof JAXBException) {
+                throw (JAXBException) cause;
+            }
+            throw new JAXBException("can't create context", cause);
+        }
+    }
+
+    /**
+     * Borrows an {@link Unmarshaller} for SOAP responses of the schema
+     * represented by the given ObjectFactory, it is exclusive for the caller
+     * until it is given back with
+     * {@link #returnUnmarshaller(Class, Unmarshaller)}
+     * 
+     * @param objectFactory
+     *            the ObjectFactory of the response schema
+     * @return the unmarshaller
+     * @throws JAXBException
+     *             if the unmarshaller can't be created
+     */
+    static Unmarshaller borrowUnmarshaller(Class<?> objectFactory) throws JAXBException {
+        Unmarshaller unmarshaller = idleUnmarshallers(objectFactory).poll();
+        if (unmarshaller == null) {
+            unmarshaller = getContext(objectFactory).createUnmarshaller();
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * Gives an {@link Unmarshaller} back, so it can be reused
+     * 
+     * @param objectFactory
+     *            the ObjectFactory it was borrowed for
+     * @param unmarshaller
+     */
+    static void returnUnmarshaller(Class<?> objectFactory, Unmarshaller unmarshaller) {
+        idleUnmarshallers(objectFactory).offer(unmarshaller);
+    }
+
+    private static Queue<Unmarshaller> idleUnmarshallers(Class<?> objectFactory) {
+        Queue<Unmarshaller> queue = UNMARSHALLERS.get(objectFactory);
+        if (queue == null) {
+            Queue<Unmarshaller> newQueue = new ConcurrentLinkedQueue<Unmarshaller>();
+            queue = UNMARSHALLERS.putIfAbsent(objectFactory, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Starts building the {@link JAXBContext} for the given ObjectFactory in
+     * the background, so it is (hopefully) ready when the first response
+     * arrives
+     * 
+     * @param objectFactory
+     *            the ObjectFactory of the response schema
+     */
+    static void warmUp(Class<?> objectFactory) {
+        FutureTask<JAXBContext> task = contextTask(objectFactory);
+        if (!task.isDone()) {
+            Thread thread = new Thread(task, "JAXB warm-up " + objectFactory.getPackage().getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static FutureTask<JAXBContext> contextTask(final Class<?> objectFactory) {
+        FutureTask<JAXBContext> task = CONTEXTS.get(objectFactory);
+        if (task == null) {
+            FutureTask<JAXBContext> newTask = new FutureTask<JAXBContext>(new Callable<JAXBContext>() {
+
+                public JAXBContext call() throws JAXBException {
+                    return JAXBContext.newInstance(Envelope.class, objectFactory);
+                }
+            });
+            task = CONTEXTS.putIfAbsent(objectFactory, newTask);
+            if (task == null) {
+                task = newTask;
+            }
+        }
+        return task;
+    }
+
     /**
      * Extract the "real" Object from JaxB
      * 
@@ -87,9 +264,28 @@ public class Tools {
         if (file == null) {
             throw new FileNotFoundException("file not present!");
         }
+        return createUpload(new FilePartSource(file), URLConnection.guessContentTypeFromName(file.getName()), filePartName, charset, params, methodParams);
+    }
+
+    /**
+     * Creates a {@link RequestEntity} that can be used for submitting the
+     * content of the given source like a file
+     * 
+     * @param source
+     *            the content to submit
+     * @param contentType
+     *            the content type of the source or <code>null</code>
+     * @param params
+     *            the params to use
+     * @param methodParams
+     *            the {@link HttpMethodParams} of the requesting method
+     * @return {@link RequestEntity} that can be used for submitting the given
+     *         content via Multipart
+     */
+    public static RequestEntity createUpload(PartSource source, String contentType, String filePartName, String charset, List<NameValuePair> params, HttpMethodParams methodParams) {
         List<Part> parts = nvToParts(params);
-        FilePart fp = new FilePart(filePartName, file);
-        fp.setContentType(URLConnection.guessContentTypeFromName(file.getName()));
+        FilePart fp = new FilePart(filePartName, source);
+        fp.setContentType(contentType);
         if (charset != null) {
             fp.setCharSet(charset);
         }
@@ -97,6 +293,24 @@ public class Tools {
         return new MultipartRequestEntity(parts.toArray(new Part[0]), methodParams);
     }
 
+    /**
+     * Reads the given stream completely
+     * 
+     * @param stream
+     *            the stream to read, it is not closed
+     * @return the content of the stream
+     * @throws IOException
+     */
+    static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
     public static List<Part> nvToParts(List<NameValuePair> params) {
         List<Part> parts = new ArrayList<Part>();
         for (NameValuePair nameValuePair : params) {
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * The outcome of a single request to the validator that was sent with the
+ * {@link ValidatorClient}, or of checking a page found while recursing
+ * 
+ * @author Christoph Läubrich
+ */
+final class ValidationResult {
+
+    private final BufferedLog log         = new BufferedLog();
+
+    private Boolean           valid;
+
+    private BuildException    failure;
+
+    private List<String>      links       = Collections.emptyList();
+
+    private List<String>      stylesheets = Collections.emptyList();
+
+    private List<String>      styles      = Collections.emptyList();
+
+    /**
+     * @return the output of the request, to be replayed by the caller
+     */
+    BufferedLog getLog() {
+        return log;
+    }
+
+    /**
+     * @return the validity of the document or <code>null</code> if it can't be
+     *         checked because it is of wrong type (or the request failed)
+     */
+    Boolean getValid() {
+        return valid;
+    }
+
+    /**
+     * @return the reason why the document could not be validated (or the
+     *         build should fail) or <code>null</code>
+     */
+    BuildException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the links (normalized) to follow from a page found while
+     *         recursing, in document order
+     */
+    List<String> getLinks() {
+        return links;
+    }
+
+    /**
+     * @return the stylesheets (normalized) of a page found while recursing, in
+     *         document order
+     */
+    List<String> getStylesheets() {
+        return stylesheets;
+    }
+
+    /**
+     * @return the content of the <code>style</code> elements of a page found
+     *         while recursing, in document order
+     */
+    List<String> getStyles() {
+        return styles;
+    }
+
+    void setValid(Boolean valid) {
+        this.valid = valid;
+    }
+
+    void setFailure(BuildException failure) {
+        this.failure = failure;
+    }
+
+    void setLinks(List<String> links) {
+        this.links = links;
+    }
+
+    void setStylesheets(List<String> stylesheets, List<String> styles) {
+        this.stylesheets = stylesheets;
+        this.styles = styles;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Sends requests to the validator asynchronously. The caller gets a
+ * {@link Future} right away and can do other work (e.g. schedule further
+ * pages) until it needs the {@link ValidationResult}. This is a thread per
+ * request wrapper around the blocking HTTP client: each request occupies a
+ * thread of the given executor (platform or virtual) while it waits for the
+ * validator, so the number of requests in flight is bounded by the size of
+ * the executor, not by the threads that submit them.
+ * 
+ * @author Christoph Läubrich
+ */
+final class ValidatorClient {
+
+    /**
+     * A single request to the validator
+     */
+    interface Request {
+
+        /**
+         * Sends the request and reads the response, all output must be
+         * written to the given log
+         * 
+         * @param out
+         * @return the validity of the document or <code>null</code> if it
+         *         can't be checked because it is of wrong type
+         * @throws BuildException
+         *             if the document could not be validated (or is invalid
+         *             and the build should fail)
+         */
+        Boolean validate(BufferedLog out) throws BuildException;
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor
+     *            the executor that sends the requests, it is shut down by
+     *            {@link #shutdown()}
+     */
+    ValidatorClient(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues the given request
+     * 
+     * @param request
+     * @return the future result, a failure of the request is reported by
+     *         {@link ValidationResult#getFailure()}
+     */
+    Future<ValidationResult> submit(final Request request) {
+        return executor.submit(new Callable<ValidationResult>() {
+
+            public ValidationResult call() {
+                ValidationResult result = new ValidationResult();
+                try {
+                    result.setValid(request.validate(result.getLog()));
+                } catch (BuildException e) {
+                    result.setFailure(e);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Waits for the result of a request
+     * 
+     * @param future
+     *            a future returned by {@link #submit(Request)}
+     * @return the result
+     * @throws BuildException
+     *             if interrupted while waiting
+     */
+    static ValidationResult await(Future<ValidationResult> future) throws BuildException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("interrupted while waiting for validation results", e);
+        } catch (ExecutionException e) {
+            throw new BuildException("unexpected problem while validating", e.getCause());
+        }
+    }
+
+    /**
+     * Cancels all pending requests, must be called once the client is no
+     * longer needed
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads the requests of a task over one or more validator endpoints. Each
+ * request goes to the endpoint with the lowest product of outstanding requests
+ * and average latency, so a slow endpoint gets less work and an endpoint not
+ * used yet is tried first. Every endpoint has its own {@link RateLimiter} and
+ * {@link CircuitBreaker} (and optionally an {@link AdaptiveLimit} for the
+ * requests in flight): an endpoint that fails too often is ejected for the
+ * pause of its breaker and probed with a single request afterwards, while the
+ * other endpoints take over its requests.
+ * 
+ * @author Christoph Läubrich
+ */
+final class ValidatorPool {
+
+    /**
+     * Weight of a new sample in the moving average of the latency
+     */
+    private static final double DECAY           = 0.2;
+
+    /**
+     * The latency a failed request counts as, so an endpoint that fails fast
+     * is not preferred
+     */
+    private static final long   FAILURE_PENALTY = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * A single validator endpoint
+     */
+    static final class Endpoint {
+
+        private final String         url;
+
+        /**
+         * The parsed URL or <code>null</code> if it is malformed, this is
+         * reported once the request is sent
+         */
+        private final URL            parsedURL;
+
+        private final RateLimiter    limiter;
+
+        private final CircuitBreaker breaker;
+
+        /**
+         * The adaptive limit of requests in flight or <code>null</code>
+         */
+        private final AdaptiveLimit  adaptiveLimit;
+
+        /**
+         * The requests of this pool in flight, guarded by the lock of the pool
+         */
+        private int                  outstanding;
+
+        /**
+         * Moving average of the latency in nanoseconds, <code>0</code> until
+         * the first request finished, guarded by the lock of the pool
+         */
+        private double               latency;
+
+        /**
+         * @param url
+         *            the URL of the validator
+         * @param limiter
+         *            the rate limiter of the URL
+         * @param breaker
+         *            the circuit breaker of the URL
+         * @param adaptiveLimit
+         *            the adaptive limit of requests in flight that is applied
+         *            to the rate limiter, or <code>null</code>
+         */
+        Endpoint(String url, RateLimiter limiter, CircuitBreaker breaker, AdaptiveLimit adaptiveLimit) {
+            this.url = url;
+            this.limiter = limiter;
+            this.breaker = breaker;
+            this.adaptiveLimit = adaptiveLimit;
+            URL parsed;
+            try {
+                parsed = new URL(url);
+            } catch (MalformedURLException e) {
+                parsed = null;
+            }
+            parsedURL = parsed;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        URL getParsedURL() {
+            return parsedURL;
+        }
+
+        CircuitBreaker getBreaker() {
+            return breaker;
+        }
+
+        AdaptiveLimit getAdaptiveLimit() {
+            return adaptiveLimit;
+        }
+    }
+
+    /**
+     * The endpoint a single request is sent to
+     */
+    static final class Lease {
+
+        private Endpoint endpoint;
+
+        private long     start;
+
+        /**
+         * The time until the response arrived in nanoseconds
+         */
+        private long     latency;
+
+        /**
+         * The requests in flight to the endpoint when this one was sent
+         */
+        private int      inFlight;
+
+        private boolean  executed;
+
+        private boolean  failed;
+
+        private boolean  held;
+
+        Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return <code>true</code> if the lease was not released since it was
+         *         acquired
+         */
+        boolean isHeld() {
+            return held;
+        }
+
+        /**
+         * Records the outcome of sending the request
+         * 
+         * @param failed
+         *            <code>true</code> if the endpoint failed to answer
+         */
+        void executed(boolean failed) {
+            this.latency = System.nanoTime() - start;
+            this.executed = true;
+            this.failed = failed;
+        }
+    }
+
+    private final Lock           lock = new ReentrantLock();
+
+    private final List<Endpoint> endpoints;
+
+    /**
+     * @param endpoints
+     *            the endpoints, at least one
+     */
+    ValidatorPool(List<Endpoint> endpoints) {
+        this.endpoints = new ArrayList<Endpoint>(endpoints);
+    }
+
+    /**
+     * @param validators
+     *            one or more URLs separated by commas
+     * @return the URLs
+     */
+    static List<String> parse(String validators) {
+        List<String> urls = new ArrayList<String>();
+        for (String url : validators.split(",")) {
+            if (url.trim().length() > 0) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Waits until a request might be sent to one of the endpoints, every call
+     * must be followed by a call to {@link #release(Lease)}
+     * 
+     * @return the lease of the request
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting, nothing is
+     *             held then
+     */
+    Lease acquire() throws InterruptedException {
+        Lease lease = new Lease();
+        reacquire(lease);
+        return lease;
+    }
+
+    /**
+     * Acquires an endpoint for a released lease, another one than before if
+     * that is possible
+     * 
+     * @param lease
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting, nothing is
+     *             held then
+     */
+    void reacquire(Lease lease) throws InterruptedException {
+        Endpoint chosen = choose(lease.endpoint);
+        if (chosen == null) {
+            //all endpoints are ejected, wait for the probe of the first one
+            chosen = endpoints.get(0);
+            chosen.breaker.acquire();
+            lock.lock();
+            try {
+                chosen.outstanding++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        try {
+            chosen.limiter.acquire();
+        } catch (InterruptedException e) {
+            chosen.breaker.abandon();
+            lock.lock();
+            try {
+                chosen.outstanding--;
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+        lease.endpoint = chosen;
+        lease.inFlight = chosen.limiter.getInFlight();
+        lease.start = System.nanoTime();
+        lease.executed = false;
+        lease.failed = false;
+        lease.held = true;
+    }
+
+    /**
+     * Marks a request as finished, its latency and outcome are recorded if it
+     * was sent
+     * 
+     * @param lease
+     * @return the new state of the breaker of the endpoint if the request
+     *         changed it, <code>null</code> otherwise
+     */
+    CircuitBreaker.State release(Lease lease) {
+        if (!lease.held) {
+            return null;
+        }
+        lease.held = false;
+        Endpoint endpoint = lease.endpoint;
+        if (lease.executed && endpoint.adaptiveLimit != null && endpoint.adaptiveLimit.record(lease.latency, lease.failed, lease.inFlight)) {
+            endpoint.limiter.setMaxInFlight(endpoint.adaptiveLimit.getLimit());
+        }
+        endpoint.limiter.release();
+        lock.lock();
+        try {
+            endpoint.outstanding--;
+            if (lease.executed) {
+                double sample = lease.failed ? Math.max(FAILURE_PENALTY, 2 * endpoint.latency) : lease.latency;
+                endpoint.latency = endpoint.latency == 0 ? sample : endpoint.latency + DECAY * (sample - endpoint.latency);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!lease.executed) {
+            endpoint.breaker.abandon();
+            return null;
+        }
+        return endpoint.breaker.record(lease.failed);
+    }
+
+    /**
+     * @param avoid
+     *            the endpoint to use only if no other one is available, or
+     *            <code>null</code>
+     * @return the endpoint with the lowest load that is not ejected, with the
+     *         request already counted, or <code>null</code> if all are
+     *         ejected
+     */
+    private Endpoint choose(Endpoint avoid) {
+        lock.lock();
+        try {
+            List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints);
+            while (!candidates.isEmpty()) {
+                Endpoint best = null;
+                double bestScore = 0;
+                for (Endpoint endpoint : candidates) {
+                    double score = (endpoint.outstanding + 1) * endpoint.latency;
+                    if (best == null || score < bestScore || score == bestScore && endpoint.outstanding < best.outstanding) {
+                        //the endpoint that just failed is the last resort
+                        if (endpoint != avoid || candidates.size() == 1) {
+                            best = endpoint;
+                            bestScore = score;
+                        }
+                    }
+                }
+                candidates.remove(best);
+                if (best.breaker.tryAcquire()) {
+                    best.outstanding++;
+                    return best;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -24,20 +24,15 @@ package de.laeubisoft.tools.ant.validation;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethodBase;
-import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
@@ -45,25 +40,17 @@ import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
-import org.apache.tools.ant.Task;
 import org.w3.css.validator.CSSValidationResponse;
 import org.w3.css.validator.Error;
-import org.w3.css.validator.ErrorList;
 import org.w3.css.validator.ObjectFactory;
-import org.w3.css.validator.Result;
-import org.w3.css.validator.ValidationErrors;
-import org.w3.css.validator.ValidationWarnings;
 import org.w3.css.validator.Warning;
-import org.w3.css.validator.WarningList;
-import org.w3.soap.envelope.Body;
-import org.w3.soap.envelope.Envelope;
 
 /**
  * Provides a task for automatic checking of CSS files
  * 
  * @author Christoph Läubrich
  */
-public class W3CCSSValidationTask extends Task {
+public class W3CCSSValidationTask extends AbstractValidationTask {
 
     /**
      * The URL of the public online validator
@@ -121,6 +108,12 @@ public class W3CCSSValidationTask extends Task {
 
     private boolean             fail;
 
+    /**
+     * Build the XML parser setup in the background while the request is on
+     * its way
+     */
+    private boolean             warmup                  = true;
+
     /**
      * @param warningFormat
      *            the new value for warningFormat
@@ -137,6 +130,14 @@ public class W3CCSSValidationTask extends Task {
         this.fail = fail;
     }
 
+    /**
+     * @param warmup
+     *            the new value for warmup
+     */
+    public void setWarmup(boolean warmup) {
+        this.warmup = warmup;
+    }
+
     /**
      * @param errorFormat
      *            the new value for errorFormat
@@ -155,7 +156,8 @@ public class W3CCSSValidationTask extends Task {
 
     /**
      * @param validator
-     *            the new value for validator
+     *            the URL of the validator, several equivalent validators can
+     *            be given separated by commas
      */
     public void setValidator(String validator) {
         this.validator = validator;
@@ -212,29 +214,145 @@ public class W3CCSSValidationTask extends Task {
     @Override
     public void execute() throws BuildException {
         validateParameter();
+        configureConnections();
+        configureRateLimit(validator, W3_ORG_VALIDATOR);
+        configureExecutor();
+        configureCache();
+        configureTimings();
+        if (warmup) {
+            Tools.warmUp(ObjectFactory.class);
+        }
+        openReports();
+        boolean complete = false;
         try {
-            InputStream connection = buildConnection(uri);
-            Unmarshaller unmarshaller = JAXBContext.newInstance(Envelope.class, ObjectFactory.class).createUnmarshaller();
-            Object object = Tools.getObject(unmarshaller.unmarshal(connection));
-            if (W3_ORG_VALIDATOR.equals(validator)) {
-                //The W3C recommends to at least wait one second between automatic requests to their public service...
-                //So we sleep here for one second to comply with this
-                try {
-                    TimeUnit.SECONDS.sleep(1);
-                } catch (InterruptedException e) {
-                    //We don't care then...
-                    return;
-                }
-            }
-            if (object instanceof Envelope) {
-                Body body = ((Envelope) object).getBody();
-                for (Object elem : body.getAny()) {
-                    Object any = Tools.getObject(elem);
-                    if (any instanceof CSSValidationResponse) {
-                        handleResponse((CSSValidationResponse) any);
+            if (hasResources()) {
+                new FileBatch(this, workerThreads(W3_ORG_VALIDATOR.equals(validator))).run(collectFiles(), new FileBatch.Check() {
+
+                    public Boolean check(File cssFile, BufferedLog out) throws BuildException {
+                        return checkFile(cssFile, out);
                     }
+                }, fail);
+            } else {
+                check(uri, file, text, new ResponseLogger(new BufferedLog(this), null, fail));
+            }
+            complete = true;
+        } finally {
+            logCacheStatistics();
+            closeReports(complete);
+            logTimings(complete);
+        }
+    }
+
+    /**
+     * Send the given file to the validator and check the result, all output
+     * is written to the given log, an invalid file does not fail the build
+     * 
+     * @param cssFile
+     *            the file to check
+     * @param out
+     *            the log to write messages to
+     * @return the validity of the file, or <code>null</code> if the response
+     *         contained no result
+     * @throws BuildException
+     */
+    Boolean checkFile(File cssFile, BufferedLog out) throws BuildException {
+        ResponseLogger logger = new ResponseLogger(out, cssFile.getPath(), false);
+        if (check(null, cssFile, null, logger)) {
+            return logger.valid;
+        }
+        return null;
+    }
+
+    /**
+     * Prepares this task to check the stylesheets found by the given task,
+     * see {@link #inheritSettings(AbstractValidationTask)}
+     * 
+     * @param owner
+     * @throws BuildException
+     */
+    void attachTo(AbstractValidationTask owner) throws BuildException {
+        inheritSettings(owner);
+        configureRateLimit(validator, W3_ORG_VALIDATOR);
+        configureExecutor();
+        configureCache();
+        if (warmup) {
+            Tools.warmUp(ObjectFactory.class);
+        }
+    }
+
+    /**
+     * Send the given stylesheet URL or text to the validator and check the
+     * result, all output is written to the given log
+     * 
+     * @param stylesheet
+     *            the URL of the stylesheet or <code>null</code>
+     * @param cssText
+     *            the stylesheet itself if no URL is given
+     * @param name
+     *            the name of the stylesheet in the output, or
+     *            <code>null</code> to use the URL
+     * @param out
+     *            the log to write messages to
+     * @param failOnInvalid
+     *            <code>true</code> if an invalid stylesheet should fail the
+     *            build
+     * @return the validity of the stylesheet, or <code>null</code> if the
+     *         response contained no result
+     * @throws BuildException
+     */
+    Boolean checkStylesheet(URL stylesheet, String cssText, String name, BufferedLog out, boolean failOnInvalid) throws BuildException {
+        ResponseLogger logger = new ResponseLogger(out, name, failOnInvalid);
+        if (check(stylesheet, null, cssText, logger)) {
+            return logger.valid;
+        }
+        return null;
+    }
+
+    /**
+     * Send the given URL, file or the text to the validator and check the
+     * result
+     * 
+     * @param uriToCheck
+     *            the URL to check (or <code>null</code> if text or file should
+     *            be used as input
+     * @param cssFile
+     *            the file to check or <code>null</code>
+     * @param cssText
+     *            the text to check or <code>null</code>
+     * @param logger
+     *            the logger for the response
+     * @return <code>true</code> if the response contained a result
+     * @throws BuildException
+     */
+    private boolean check(URL uriToCheck, File cssFile, String cssText, ResponseLogger logger) throws BuildException {
+        try {
+            List<NameValuePair> params = buildParameters(uriToCheck, cssText);
+            CSSResponseReader reader = new CSSResponseReader(logger);
+            String cacheKey = null;
+            if (uriToCheck == null) {
+                //the content of an URI might change without notice, but files and texts can be cached
+                cacheKey = buildCacheKey(params, cssFile);
+            }
+            Boolean cached = readCached(reader, cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            ValidatorPool.Lease lease = acquirePermit();
+            try {
+                HttpMethodBase method = buildConnection(uriToCheck, params, cssFile, cssText, lease);
+                long start = System.nanoTime();
+                Timings.CountingInputStream response = new Timings.CountingInputStream(method.getResponseBodyAsStream());
+                try {
+                    return readResponse(reader, response, cacheKey);
+                } finally {
+                    method.releaseConnection();
+                    recordTiming(Timings.Phase.PARSE, lease.getEndpoint().getUrl(), System.nanoTime() - start, response.getCount());
                 }
+            } finally {
+                releasePermit(lease);
             }
+        } catch (XMLStreamException e) {
+            throw new BuildException("problem handling XML", e);
         } catch (JAXBException e) {
             throw new BuildException("problem handling XML");
         } catch (IOException e) {
@@ -258,35 +376,35 @@ public class W3CCSSValidationTask extends Task {
         if (file != null) {
             notNullSource++;
         }
+        if (hasResources()) {
+            notNullSource++;
+        }
         if (notNullSource == 0) {
-            throw new BuildException("at least one of 'uri', 'cssText' or 'file' must be given!");
+            throw new BuildException("at least one of 'uri', 'cssText', 'file' or nested resources must be given!");
         }
         if (notNullSource > 1) {
-            throw new BuildException("Only one of 'uri', 'cssText' or 'file' can be given!");
+            throw new BuildException("Only one of 'uri', 'cssText', 'file' or nested resources can be given!");
         }
     }
 
     /**
-     * Creates the actual request to the validation server for a given
-     * {@link URL} and returns an inputstream the result can be read from
+     * Builds the parameters of the request to the validation server
      * 
      * @param uriToCheck
      *            the URL to check (or <code>null</code> if text or file should
      *            be used as input
-     * @return the stream to read the response from
-     * @throws IOException
-     *             if unrecoverable communication error occurs
-     * @throws BuildException
-     *             if server returned unexspected results
+     * @param cssText
+     *            the text to check or <code>null</code>
+     * @return the parameters
      */
-    private InputStream buildConnection(final URL uriToCheck) throws IOException, BuildException {
+    private List<NameValuePair> buildParameters(final URL uriToCheck, String cssText) {
         List<NameValuePair> params = new ArrayList<NameValuePair>();
         params.add(new NameValuePair("output", VALIDATOR_FORMAT_OUTPUT));
         if (uriToCheck != null) {
             params.add(new NameValuePair("uri", uriToCheck.toString()));
         } else {
-            if (text != null) {
-                params.add(new NameValuePair("text", text));
+            if (cssText != null) {
+                params.add(new NameValuePair("text", cssText));
             }
         }
         if (usermedium != null) {
@@ -301,63 +419,149 @@ public class W3CCSSValidationTask extends Task {
         if (warning != null) {
             params.add(new NameValuePair("warning", warning));
         }
-        HttpClient httpClient = new HttpClient();
+        return params;
+    }
+
+    /**
+     * Builds the key to cache the result of a file or text validation
+     * 
+     * @param params
+     *            the parameters of the request
+     * @param cssFile
+     *            the file to check or <code>null</code>
+     * @return the key or <code>null</code> if no cache is configured
+     * @throws IOException
+     *             if the file can't be read
+     */
+    private String buildCacheKey(List<NameValuePair> params, File cssFile) throws IOException {
+        ResultCache.KeyBuilder key = cacheKey();
+        if (key == null) {
+            return null;
+        }
+        key.add(validator);
+        for (NameValuePair nameValuePair : params) {
+            key.add(nameValuePair.getName()).add(nameValuePair.getValue());
+        }
+        if (cssFile != null) {
+            key.add(cssFile);
+        }
+        return key.build();
+    }
+
+    /**
+     * Creates and executes the actual request to the validation server for a
+     * given {@link URL}, the response can be read from the returned method that
+     * must be released afterwards
+     * 
+     * @param uriToCheck
+     *            the URL to check (or <code>null</code> if text or file should
+     *            be used as input
+     * @param params
+     *            the parameters of the request
+     * @param cssFile
+     *            the file to check or <code>null</code>
+     * @param cssText
+     *            the text to check or <code>null</code>
+     * @param lease
+     *            the lease with the validator to send the request to
+     * @return the executed method to read the response from
+     * @throws IOException
+     *             if unrecoverable communication error occurs
+     * @throws BuildException
+     *             if server returned unexspected results
+     */
+    private HttpMethodBase buildConnection(final URL uriToCheck, List<NameValuePair> params, File cssFile, String cssText, ValidatorPool.Lease lease) throws IOException, BuildException {
         HttpMethodBase method;
         if (uriToCheck != null) {
             //URIs must be checked via traditonal GET...
-            GetMethod getMethod = new GetMethod(validator);
+            GetMethod getMethod = new GetMethod(lease.getEndpoint().getUrl());
             getMethod.setQueryString(params.toArray(new NameValuePair[0]));
             method = getMethod;
         } else {
-            PostMethod postMethod = new PostMethod(validator);
-            if (text != null) {
+            PostMethod postMethod = new PostMethod(lease.getEndpoint().getUrl());
+            if (cssText != null) {
                 //Text request must be multipart encoded too...
                 postMethod.setRequestEntity(new MultipartRequestEntity(Tools.nvToParts(params).toArray(new Part[0]), postMethod.getParams()));
             } else {
                 //Finally files must be checked with multipart-forms....
-                postMethod.setRequestEntity(Tools.createFileUpload(file, "file", null, params, postMethod.getParams()));
+                postMethod.setRequestEntity(Tools.createFileUpload(cssFile, "file", null, params, postMethod.getParams()));
             }
             method = postMethod;
         }
-        int result = httpClient.executeMethod(method);
-        if (result == HttpStatus.SC_OK) {
-            return method.getResponseBodyAsStream();
-        } else {
-            throw new BuildException("Server returned " + result + " " + method.getStatusText());
-        }
-
+        return send(method, lease);
     }
 
     /**
-     * @param any
+     * Prints out the relevant parts of the response while it is read, and
+     * fails if {@link #fail} is set and validation was not successfull
      */
-    private void handleResponse(CSSValidationResponse response) {
-        log("Checkedby:      " + response.getCheckedby());
-        log("Csslevel:       " + response.getCsslevel());
-        log("EncodingStyle:  " + response.getEncodingStyle());
-        log("Date:           " + response.getDate());
-        log("URI:            " + response.getUri());
-        log("Validity:       " + response.isValidity());
-        Result result = response.getResult();
-        ValidationErrors validationErrors = result.getErrors();
-        if (validationErrors != null) {
-            for (ErrorList errorList : validationErrors.getErrorlist()) {
-                for (Error error : errorList.getError()) {
-                    log(MessageFormat.format(errorFormat, errorList.getUri(), error.getLevel(), error.getLine(), Tools.trim(error.getMessage()), Tools.trim(error.getContext()), Tools.trim(error.getErrortype()), Tools.trim(error.getErrorsubtype()), Tools.trim(error.getSkippedstring())), Project.MSG_ERR);
-                }
+    private final class ResponseLogger implements CSSResponseReader.Listener {
+
+        private final BufferedLog     out;
+
+        private final String          uri;
+
+        private final boolean         failOnInvalid;
+
+        /**
+         * The validity of the response once it was read
+         */
+        private Boolean               valid;
+
+        /**
+         * The document for the reports, <code>null</code> if there are none
+         */
+        private ReportWriter.Document document;
+
+        /**
+         * @param out
+         *            the log to write messages to
+         * @param uri
+         *            the URI to report instead of the one in the response, or
+         *            <code>null</code>
+         * @param failOnInvalid
+         *            <code>true</code> if an invalid document should fail the
+         *            build
+         */
+        ResponseLogger(BufferedLog out, String uri, boolean failOnInvalid) {
+            this.out = out;
+            this.uri = uri;
+            this.failOnInvalid = failOnInvalid;
+        }
+
+        public void startResponse(CSSValidationResponse response) {
+            out.log("Checkedby:      " + response.getCheckedby());
+            out.log("Csslevel:       " + response.getCsslevel());
+            out.log("EncodingStyle:  " + response.getEncodingStyle());
+            out.log("Date:           " + response.getDate());
+            out.log("URI:            " + (uri != null ? uri : response.getUri()));
+            out.log("Validity:       " + response.isValidity());
+            document = hasReports() ? new ReportWriter.Document(uri != null ? uri : response.getUri()) : null;
+        }
+
+        public void error(CSSValidationResponse response, String uri, Error error) {
+            out.log(MessageFormat.format(errorFormat, uri, error.getLevel(), error.getLine(), Tools.trim(error.getMessage()), Tools.trim(error.getContext()), Tools.trim(error.getErrortype()), Tools.trim(error.getErrorsubtype()), Tools.trim(error.getSkippedstring())), Project.MSG_ERR);
+            if (document != null) {
+                document.error(String.valueOf(error.getLine()), null, Tools.trim(error.getMessage()), Tools.trim(error.getErrortype()), Tools.trim(error.getContext()));
             }
         }
-        ValidationWarnings validationWarnings = result.getWarnings();
-        if (validationWarnings != null) {
-            for (WarningList warningList : validationWarnings.getWarninglist()) {
-                for (Warning warning : warningList.getWarning()) {
 
-                    log(MessageFormat.format(warningFormat, warningList.getUri(), warning.getLevel(), warning.getLine(), warning.getMessage()), Project.MSG_WARN);
-                }
+        public void warning(CSSValidationResponse response, String uri, Warning warning) {
+            out.log(MessageFormat.format(warningFormat, uri, warning.getLevel(), warning.getLine(), warning.getMessage()), Project.MSG_WARN);
+            if (document != null) {
+                document.warning(String.valueOf(warning.getLine()), null, Tools.trim(warning.getMessage()), null, null);
             }
         }
-        if (fail && !response.isValidity()) {
-            throw new BuildException("Validation produced errors");
+
+        public void endResponse(CSSValidationResponse response) {
+            valid = Boolean.valueOf(response.isValidity());
+            if (document != null) {
+                document.setValid(valid);
+                out.report(document);
+            }
+            if (failOnInvalid && !response.isValidity()) {
+                throw new BuildException("Validation produced errors");
+            }
         }
     }
 
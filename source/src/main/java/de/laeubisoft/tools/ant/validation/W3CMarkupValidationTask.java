@@ -19,52 +19,53 @@
  */
 package de.laeubisoft.tools.ant.validation;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderElement;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
+import org.apache.commons.httpclient.methods.multipart.FilePartSource;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
-import org.apache.tools.ant.Task;
 import org.ccil.cowan.tagsoup.Parser;
 import org.w3.markup.validator.Culprit;
 import org.w3.markup.validator.Debug;
+import org.w3.markup.validator.Error;
 import org.w3.markup.validator.MarkupValidationResponse;
 import org.w3.markup.validator.ObjectFactory;
-import org.w3.markup.validator.ValidationErrors;
-import org.w3.markup.validator.ValidationWarnings;
 import org.w3.markup.validator.Warning;
-import org.w3.soap.envelope.Envelope;
-import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Provides a task for automatic checking of HTML documents
  * 
  * @author Christoph Läubrich
  */
-public class W3CMarkupValidationTask extends Task {
+public class W3CMarkupValidationTask extends AbstractValidationTask {
 
     /**
      * The URL of the public online validator
@@ -126,6 +127,108 @@ public class W3CMarkupValidationTask extends Task {
      * Try to recurse into links
      */
     private boolean             recurse;
+
+    /**
+     * Directory of the index that allows to only revalidate changed pages when
+     * recursing
+     */
+    private File                crawlIndex;
+
+    /**
+     * Upload the content of the pages to the validator when recursing, so
+     * each page is downloaded only once
+     */
+    private boolean             uploadPages;
+
+    /**
+     * Number of URLs waiting to be crawled that are kept in memory, further
+     * URLs are spilled to temporary files, 0 means no limit
+     */
+    private int                 maxFrontierSize         = 100000;
+
+    /**
+     * File to record the progress of the crawl in, so it can be resumed
+     */
+    private File                checkpoint;
+
+    /**
+     * Continue the crawl recorded in the checkpoint instead of starting over
+     */
+    private boolean             resume;
+
+    /**
+     * The part of a crawl split across several processes this task checks,
+     * like 3/8
+     */
+    private String              shard;
+
+    /**
+     * Directory shared by all shards of a crawl to exchange links and results
+     */
+    private File                shardDirectory;
+
+    /**
+     * Seconds after that another shard that did not start or stopped
+     * responding is considered failed
+     */
+    private long                shardTimeout            = 600;
+
+    /**
+     * Combine the results of all shards in the shard directory instead of
+     * checking anything
+     */
+    private boolean             mergeShards;
+
+    /**
+     * Report each distinct error or warning once at the end instead of for
+     * every document
+     */
+    private boolean             aggregate;
+
+    /**
+     * Number of URIs listed per aggregated issue
+     */
+    private int                 aggregateSamples        = 3;
+
+    /**
+     * Stop the crawl once an aggregated error was found this often, 0 means
+     * no limit
+     */
+    private int                 maxOccurrences;
+
+    /**
+     * Stop the crawl after this many pages, 0 means no limit
+     */
+    private int                 maxPages;
+
+    /**
+     * Follow links only this many levels deep from the start page, -1 means no
+     * limit
+     */
+    private int                 maxDepth                = -1;
+
+    /**
+     * Stop the crawl after this many seconds, 0 means no limit
+     */
+    private long                timeBudget;
+
+    /**
+     * Check only this many pages per URL pattern, 0 means no limit
+     */
+    private int                 pagesPerPattern;
+
+    /**
+     * Collects the issues while the task is executed if {@link #aggregate} is
+     * set
+     */
+    private IssueAggregator     aggregator;
+
+    /**
+     * Build the XML parser setup in the background while the first request is
+     * on its way
+     */
+    private boolean             warmup                  = true;
+
     /**
      * Should the build fail on error
      */
@@ -157,6 +260,17 @@ public class W3CMarkupValidationTask extends Task {
      */
     private final List<Pattern> ignorePatternList       = new ArrayList<Pattern>();
 
+    /**
+     * The ignore pattern compiled into one matcher, created on first use
+     */
+    private IgnoreMatcher       ignoreMatcher;
+
+    /**
+     * The settings to check the stylesheets of the pages found while
+     * recursing, or <code>null</code> if they are not checked
+     */
+    private Stylesheets         stylesheets;
+
     /**
      * Add a (configured) pattern to the ignore list
      * 
@@ -164,9 +278,22 @@ public class W3CMarkupValidationTask extends Task {
      */
     public void addConfiguredIgnore(IgnorePattern ignorePattern) {
         ignorePatternList.add(ignorePattern.toPattern());
+        ignoreMatcher = null;
         log("Pattern added " + ignorePattern, Project.MSG_INFO);
     }
 
+    /**
+     * Check the stylesheets of the pages found while recursing as well
+     * 
+     * @param stylesheets
+     */
+    public void addConfiguredStylesheets(Stylesheets stylesheets) {
+        if (this.stylesheets != null) {
+            throw new BuildException("only one stylesheets element can be given");
+        }
+        this.stylesheets = stylesheets;
+    }
+
     /**
      * @param uri
      *            the new value for uri
@@ -193,7 +320,8 @@ public class W3CMarkupValidationTask extends Task {
 
     /**
      * @param validator
-     *            the new value for validator
+     *            the URL of the validator, several equivalent validators can
+     *            be given separated by commas
      */
     public void setValidator(String validator) {
         this.validator = validator;
@@ -234,6 +362,157 @@ public class W3CMarkupValidationTask extends Task {
         this.recurse = recurse;
     }
 
+    /**
+     * @param crawlIndex
+     *            the new value for crawlIndex
+     */
+    public void setCrawlIndex(File crawlIndex) {
+        this.crawlIndex = crawlIndex;
+    }
+
+    /**
+     * @param uploadPages
+     *            the new value for uploadPages
+     */
+    public void setUploadPages(boolean uploadPages) {
+        this.uploadPages = uploadPages;
+    }
+
+    /**
+     * @param maxFrontierSize
+     *            the new value for maxFrontierSize
+     */
+    public void setMaxFrontierSize(int maxFrontierSize) {
+        this.maxFrontierSize = maxFrontierSize;
+    }
+
+    /**
+     * @param checkpoint
+     *            the new value for checkpoint
+     */
+    public void setCheckpoint(File checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @param resume
+     *            the new value for resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Only check the pages of the given shard, like <code>3/8</code>. Pages
+     * are assigned to shards by a hash of their URL, links to pages of other
+     * shards are handed over through the {@link #setShardDirectory(File)
+     * shard directory}. Invalid pages do not fail a shard, the verdict is
+     * given when the shards are {@link #setMergeShards(boolean) merged}.
+     * 
+     * @param shard
+     *            the new value for shard
+     */
+    public void setShard(String shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * @param shardDirectory
+     *            the new value for shardDirectory
+     */
+    public void setShardDirectory(File shardDirectory) {
+        this.shardDirectory = shardDirectory;
+    }
+
+    /**
+     * Another shard of the crawl that did not start within the given number
+     * of seconds, or did not show any sign of life for as long, is considered
+     * failed, so this shard stops instead of waiting forever
+     * 
+     * @param shardTimeout
+     *            the new value for shardTimeout in seconds
+     */
+    public void setShardTimeout(long shardTimeout) {
+        this.shardTimeout = shardTimeout;
+    }
+
+    /**
+     * @param mergeShards
+     *            the new value for mergeShards
+     */
+    public void setMergeShards(boolean mergeShards) {
+        this.mergeShards = mergeShards;
+    }
+
+    /**
+     * Set this to <code>true</code> to log each distinct error or warning
+     * only once, with the number of occurrences and some of the URIs it was
+     * found on, instead of logging it for every document. Invalid documents
+     * do not stop the task then, it fails at the end if {@link #fail} is set.
+     * 
+     * @param aggregate
+     *            the new value for aggregate
+     */
+    public void setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @param aggregateSamples
+     *            the new value for aggregateSamples
+     */
+    public void setAggregateSamples(int aggregateSamples) {
+        this.aggregateSamples = aggregateSamples;
+    }
+
+    /**
+     * @param maxOccurrences
+     *            the new value for maxOccurrences
+     */
+    public void setMaxOccurrences(int maxOccurrences) {
+        this.maxOccurrences = maxOccurrences;
+    }
+
+    /**
+     * @param maxPages
+     *            the new value for maxPages
+     */
+    public void setMaxPages(int maxPages) {
+        this.maxPages = maxPages;
+    }
+
+    /**
+     * @param maxDepth
+     *            the new value for maxDepth
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param timeBudget
+     *            the new value for timeBudget in seconds
+     */
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * @param pagesPerPattern
+     *            the new value for pagesPerPattern
+     */
+    public void setPagesPerPattern(int pagesPerPattern) {
+        this.pagesPerPattern = pagesPerPattern;
+    }
+
+    /**
+     * @param warmup
+     *            the new value for warmup
+     */
+    public void setWarmup(boolean warmup) {
+        this.warmup = warmup;
+    }
+
     /**
      * @param fragment
      *            the new value for fragment
@@ -268,43 +547,240 @@ public class W3CMarkupValidationTask extends Task {
 
     @Override
     public void execute() throws BuildException {
+        if (mergeShards) {
+            mergeShards();
+            return;
+        }
         validateParameter();
-        List<URL> urlsToCheck = new ArrayList<URL>();
-        urlsToCheck.add(uri);
-        HashSet<String> checkedURIs = new HashSet<String>();
-        while (!urlsToCheck.isEmpty()) {
-            URL url = urlsToCheck.remove(0);
-            if (url != null) {
-                String uriString = url.toString();
-                if (checkedURIs.contains(uriString)) {
-                    continue;
-                }
-                checkedURIs.add(uriString);
-            }
-            //Check the URI (might be null if fragment or file was given...)
-            if (checkURI(url)) {
-                //If we should recurse, parse the URL and determine all links
-                if (recurse) {
-                    Set<URL> recurseInto = recurseInto(url);
-                    urlloop: for (URL newUrl : recurseInto) {
-                        String string = newUrl.toString();
-                        if (checkedURIs.contains(string)) {
-                            continue;
-                        }
-                        for (Pattern pattern : ignorePatternList) {
-                            if (pattern.matcher(string).matches()) {
-                                log("pattern " + pattern + " matches " + string + ", URL will be ignored", Project.MSG_INFO);
-                                checkedURIs.add(string);
-                                continue urlloop;
-                            }
-                        }
-                        urlsToCheck.add(newUrl);
+        configureConnections();
+        configureRateLimit(validator, W3_ORG_VALIDATOR);
+        configureExecutor();
+        configureCache();
+        configureTimings();
+        if (warmup) {
+            Tools.warmUp(ObjectFactory.class);
+        }
+        if (stylesheets != null) {
+            stylesheets.attachTo(this);
+        }
+        openReports();
+        aggregator = aggregate ? new IssueAggregator(aggregateSamples, maxOccurrences) : null;
+        boolean complete = false;
+        try {
+            if (recurse) {
+                crawl(workerThreads(W3_ORG_VALIDATOR.equals(validator)));
+            } else if (hasResources()) {
+                new FileBatch(this, workerThreads(W3_ORG_VALIDATOR.equals(validator))).run(collectFiles(), new FileBatch.Check() {
+
+                    public Boolean check(File file, BufferedLog out) throws BuildException {
+                        return checkFile(file, out);
                     }
+                }, fail);
+            } else {
+                //Check the URI (might be null if fragment or file was given...)
+                checkURI(uri);
+            }
+            complete = true;
+            if (aggregator != null && aggregator.getInvalid() > 0 && fail) {
+                throw new BuildException(aggregator.getInvalid() + " of " + aggregator.getDocuments() + " documents are invalid");
+            }
+        } finally {
+            logCacheStatistics();
+            if (stylesheets != null) {
+                stylesheets.getTask().logCacheStatistics();
+            }
+            logIssues();
+            closeReports(complete);
+            logTimings(complete);
+        }
+    }
+
+    /**
+     * Logs the aggregated issues, if {@link #aggregate} is set. The lines
+     * have the same layout as the messages of a single document, with the
+     * first document the issue was found on.
+     */
+    private void logIssues() {
+        if (aggregator == null) {
+            return;
+        }
+        for (IssueAggregator.Issue issue : aggregator.getIssues()) {
+            ReportWriter.Message message = issue.getMessage();
+            StringBuilder sb = new StringBuilder();
+            sb.append(message.isError() ? "[ERROR] [" : "[WARNING] [").append(issue.getSamples().get(0)).append("] ");
+            sb.append("Line ").append(message.getLine()).append(", Column ").append(message.getColumn()).append(": ");
+            sb.append(message.getText()).append(" (ID ").append(message.getRule()).append(") source = '").append(IssueAggregator.normalize(message.getSource())).append("', ");
+            sb.append(issue.getCount()).append(" occurrences, e.g. ");
+            for (int i = 0; i < issue.getSamples().size(); i++) {
+                sb.append(i > 0 ? ", " : "").append(issue.getSamples().get(i));
+            }
+            log(sb.toString(), message.isError() ? Project.MSG_ERR : Project.MSG_WARN);
+        }
+        log("Aggregated " + aggregator.getErrors() + " errors and " + aggregator.getWarnings() + " warnings of " + aggregator.getDocuments() + " documents (" + aggregator.getInvalid() + " invalid) into " + aggregator.getIssues().size() + " distinct issues", Project.MSG_INFO);
+    }
+
+    @Override
+    boolean hasReports() {
+        return aggregator != null || super.hasReports();
+    }
+
+    @Override
+    synchronized void report(ReportWriter.Document document) throws BuildException {
+        super.report(document);
+        if (aggregator != null) {
+            boolean wasSaturated = aggregator.getSaturated() != null;
+            aggregator.add(document);
+            IssueAggregator.Issue saturated = aggregator.getSaturated();
+            if (!wasSaturated && saturated != null) {
+                log("Error '" + saturated.getMessage().getText() + "' was found " + saturated.getCount() + " times, no further pages are validated", Project.MSG_WARN);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if an aggregated error was found
+     *         {@link #maxOccurrences} times, so the crawl should stop
+     */
+    boolean isSaturated() {
+        return aggregator != null && aggregator.getSaturated() != null;
+    }
+
+    /**
+     * @return <code>true</code> if an invalid document should fail the build
+     *         right away
+     */
+    private boolean failOnInvalid() {
+        //sharded or aggregated results fail the build at the end
+        return fail && shard == null && !aggregate;
+    }
+
+    private Crawler newCrawler(int workers, CrawlIndex index, ShardQueue shards) {
+        Crawler crawler = new Crawler(this, workers, index, maxFrontierSize, checkpoint, resume, shards);
+        crawler.setBudget(maxPages, maxDepth, TimeUnit.SECONDS.toMillis(timeBudget), pagesPerPattern);
+        return crawler;
+    }
+
+    /**
+     * Crawls the site starting at {@link #uri}, and maintains the crawl index
+     * if one is configured
+     * 
+     * @param workers
+     *            the number of worker threads
+     * @throws BuildException
+     */
+    private void crawl(int workers) throws BuildException {
+        ShardQueue shards = null;
+        if (shard != null) {
+            int[] parsed = ShardQueue.parse(shard);
+            try {
+                shards = new ShardQueue(shardDirectory, parsed[0], parsed[1], TimeUnit.SECONDS.toMillis(shardTimeout));
+            } catch (IOException e) {
+                throw new BuildException("can't use shard directory " + shardDirectory, e);
+            }
+        }
+        if (crawlIndex == null) {
+            newCrawler(workers, null, shards).crawl(uri);
+            return;
+        }
+        CrawlIndex index;
+        try {
+            index = CrawlIndex.load(crawlIndex);
+        } catch (IOException e) {
+            throw new BuildException("can't read crawl index at " + crawlIndex, e);
+        }
+        boolean complete = false;
+        Crawler crawler = newCrawler(workers, index, shards);
+        try {
+            crawler.crawl(uri);
+            complete = true;
+        } finally {
+            log("Crawl index: " + index.getUnchanged() + " unchanged pages, " + index.getChanged() + " pages validated", Project.MSG_INFO);
+            try {
+                //a resumed, stopped or sampled crawl has not seen all pages, so nothing is pruned
+                index.save(complete && !crawler.isResumed() && !crawler.isStopped() && maxDepth < 0 && pagesPerPattern == 0);
+            } catch (IOException e) {
+                if (complete) {
+                    throw new BuildException("can't write crawl index at " + crawlIndex, e);
                 }
+                log("can't write crawl index at " + crawlIndex + ": " + e, Project.MSG_WARN);
             }
         }
     }
 
+    /**
+     * Combines the results of all shards in {@link #shardDirectory} and fails
+     * if any page or stylesheet was invalid or a shard did not finish
+     * 
+     * @throws BuildException
+     */
+    private void mergeShards() throws BuildException {
+        if (shardDirectory == null) {
+            throw new BuildException("the mergeShards option requires a shardDirectory");
+        }
+        if (uri != null || fragment != null || uploaded_file != null || hasResources() || shard != null) {
+            throw new BuildException("the mergeShards option can't be used together with anything to check");
+        }
+        ShardQueue.Merged merged;
+        try {
+            merged = ShardQueue.merge(shardDirectory);
+        } catch (IOException e) {
+            throw new BuildException("can't read shard results in " + shardDirectory, e);
+        }
+        for (String page : merged.getInvalid()) {
+            log("invalid page " + page, Project.MSG_ERR);
+        }
+        for (String stylesheet : merged.getInvalidStylesheets()) {
+            log("invalid stylesheet " + stylesheet, Project.MSG_ERR);
+        }
+        for (String problem : merged.getProblems()) {
+            log(problem, Project.MSG_ERR);
+        }
+        log("Merged " + merged.getShards() + " shards: " + (merged.getValid() + merged.getInvalid().size()) + " pages checked (" + merged.getInvalid().size() + " invalid), " + merged.getSkipped() + " pages skipped" + describeStylesheets(merged.getValidStylesheets() + merged.getInvalidStylesheets().size(), merged.getInvalidStylesheets().size()), Project.MSG_INFO);
+        if (!merged.getProblems().isEmpty()) {
+            throw new BuildException("the sharded crawl in " + shardDirectory + " is incomplete");
+        }
+        if (!merged.getInvalid().isEmpty() && fail) {
+            throw new BuildException("the sharded crawl found " + merged.getInvalid().size() + " invalid pages");
+        }
+        if (!merged.getInvalidStylesheets().isEmpty() && fail) {
+            throw new BuildException("the sharded crawl found " + merged.getInvalidStylesheets().size() + " invalid stylesheets");
+        }
+    }
+
+    /**
+     * @return the number of checked stylesheets for a summary, empty if there
+     *         are none
+     */
+    static String describeStylesheets(int checked, int invalid) {
+        if (checked == 0) {
+            return "";
+        }
+        return ", " + checked + " stylesheets checked (" + invalid + " invalid)";
+    }
+
+    /**
+     * Checks if the given URL matches any of the ignore pattern, the crawler
+     * asks only once for each distinct URL
+     * 
+     * @param string
+     *            the URL to check
+     * @return <code>true</code> if the URL should be ignored
+     */
+    boolean isIgnored(String string) {
+        if (ignorePatternList.isEmpty()) {
+            return false;
+        }
+        if (ignoreMatcher == null) {
+            ignoreMatcher = new IgnoreMatcher(ignorePatternList);
+        }
+        Pattern pattern = ignoreMatcher.firstMatch(string);
+        if (pattern != null) {
+            log("pattern " + pattern + " matches " + string + ", URL will be ignored", Project.MSG_INFO);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Validates the parameter and throws exception if something is invalid
      * 
@@ -327,11 +803,83 @@ public class W3CMarkupValidationTask extends Task {
                 throw new BuildException("the recurse option can only be used with uri attribute, but file was given");
             }
         }
+        if (hasResources()) {
+            notNullSource++;
+            if (recurse) {
+                throw new BuildException("the recurse option can only be used with uri attribute, but nested resources were given");
+            }
+        }
         if (notNullSource == 0) {
-            throw new BuildException("at least one of 'uri', 'fragment' or 'file' must be given!");
+            throw new BuildException("at least one of 'uri', 'fragment', 'file' or nested resources must be given!");
         }
         if (notNullSource > 1) {
-            throw new BuildException("Only one of 'uri', 'fragment' or 'file' can be given!");
+            throw new BuildException("Only one of 'uri', 'fragment', 'file' or nested resources can be given!");
+        }
+        if (crawlIndex != null && !recurse) {
+            throw new BuildException("the crawlIndex option can only be used with the recurse option");
+        }
+        if (uploadPages && !recurse) {
+            throw new BuildException("the uploadPages option can only be used with the recurse option");
+        }
+        if (checkpoint != null && !recurse) {
+            throw new BuildException("the checkpoint option can only be used with the recurse option");
+        }
+        if (resume && checkpoint == null) {
+            throw new BuildException("the resume option requires a checkpoint file");
+        }
+        if (shard != null) {
+            if (!recurse) {
+                throw new BuildException("the shard option can only be used with the recurse option");
+            }
+            if (ShardQueue.parse(shard) == null) {
+                throw new BuildException("shard must be given as <shard>/<number of shards> with 1 <= shard <= number of shards but was " + shard);
+            }
+            if (shardDirectory == null) {
+                throw new BuildException("the shard option requires a shardDirectory");
+            }
+            if (checkpoint != null) {
+                throw new BuildException("the shard option can't be used together with a checkpoint");
+            }
+            if (shardTimeout < 10) {
+                throw new BuildException("shardTimeout must be at least 10 seconds but was " + shardTimeout);
+            }
+        } else if (shardDirectory != null) {
+            throw new BuildException("the shardDirectory option can only be used with the shard option or mergeShards");
+        }
+        if (aggregateSamples < 1) {
+            throw new BuildException("aggregateSamples must be at least 1 but was " + aggregateSamples);
+        }
+        if (maxOccurrences < 0) {
+            throw new BuildException("maxOccurrences must not be negative but was " + maxOccurrences);
+        }
+        if (maxOccurrences > 0) {
+            if (!aggregate || !recurse) {
+                throw new BuildException("the maxOccurrences option can only be used with the aggregate and recurse options");
+            }
+            if (shard != null) {
+                throw new BuildException("the maxOccurrences option can't be used together with the shard option");
+            }
+        }
+        if (maxFrontierSize < 0) {
+            throw new BuildException("maxFrontierSize must not be negative but was " + maxFrontierSize);
+        }
+        if (stylesheets != null && !recurse) {
+            throw new BuildException("stylesheets can only be checked with the recurse option");
+        }
+        if (maxPages < 0) {
+            throw new BuildException("maxPages must not be negative but was " + maxPages);
+        }
+        if (maxDepth < -1) {
+            throw new BuildException("maxDepth must be -1 (no limit) or more but was " + maxDepth);
+        }
+        if (timeBudget < 0) {
+            throw new BuildException("timeBudget must not be negative but was " + timeBudget);
+        }
+        if (pagesPerPattern < 0) {
+            throw new BuildException("pagesPerPattern must not be negative but was " + pagesPerPattern);
+        }
+        if ((maxPages > 0 || maxDepth >= 0 || timeBudget > 0 || pagesPerPattern > 0) && !recurse) {
+            throw new BuildException("the maxPages, maxDepth, timeBudget and pagesPerPattern options can only be used with the recurse option");
         }
     }
 
@@ -345,36 +893,77 @@ public class W3CMarkupValidationTask extends Task {
      * @throws BuildException
      */
     protected boolean checkURI(final URL uriToCheck) throws BuildException {
+        return checkURI(uriToCheck, new BufferedLog(this));
+    }
+
+    /**
+     * Send the given URL to the validator and check the result, all output is
+     * written to the given log
+     * 
+     * @param uriToCheck
+     *            the {@link URL} to check
+     * @param out
+     *            the log to write messages to
+     * @return <code>true</code> if URL was checked, <code>false</code> if this
+     *         URL can't be checked because it is of wrong type
+     * @throws BuildException
+     */
+    boolean checkURI(final URL uriToCheck, BufferedLog out) throws BuildException {
+        return check(uriToCheck, uploaded_file, new ResponseLogger(out, null, failOnInvalid()), out);
+    }
+
+    /**
+     * Send the given file to the validator and check the result, all output
+     * is written to the given log, an invalid file does not fail the build
+     * 
+     * @param file
+     *            the file to check
+     * @param out
+     *            the log to write messages to
+     * @return the validity of the file, or <code>null</code> if the file
+     *         can't be checked because it is of wrong type
+     * @throws BuildException
+     */
+    Boolean checkFile(File file, BufferedLog out) throws BuildException {
+        ResponseLogger logger = new ResponseLogger(out, file.getPath(), false);
+        if (check(null, file, logger, out)) {
+            return logger.valid;
+        }
+        return null;
+    }
+
+    /**
+     * Send the given URL, file or the fragment to the validator and check the
+     * result
+     * 
+     * @param uriToCheck
+     *            the {@link URL} to check or <code>null</code>
+     * @param file
+     *            the file to check or <code>null</code>
+     * @param logger
+     *            the logger for the response
+     * @param out
+     *            the log to write messages to
+     * @return <code>true</code> if URL was checked, <code>false</code> if this
+     *         URL can't be checked because it is of wrong type
+     * @throws BuildException
+     */
+    private boolean check(URL uriToCheck, File file, ResponseLogger logger, BufferedLog out) throws BuildException {
         try {
-            InputStream connection = buildConnection(uriToCheck);
-            Unmarshaller unmarshaller = JAXBContext.newInstance(Envelope.class, ObjectFactory.class).createUnmarshaller();
-            Object object = Tools.getObject(unmarshaller.unmarshal(connection));
-            if (W3_ORG_VALIDATOR.equals(validator)) {
-                //The W3C recommends to at least wait one second between automatic requests to their public service...
-                //So we sleep here for one second to comply with this
-                try {
-                    TimeUnit.SECONDS.sleep(1);
-                } catch (InterruptedException e) {
-                    //We don't care then...
-                    return false;
-                }
+            List<NameValuePair> params = buildParameters(uriToCheck);
+            MarkupResponseReader reader = new MarkupResponseReader(logger);
+            String cacheKey = null;
+            if (uriToCheck == null) {
+                //the content of an URI might change without notice, but files and fragments can be cached
+                cacheKey = buildCacheKey(params, file);
             }
-            if (object instanceof Envelope) {
-                Envelope envelope = (Envelope) object;
-                for (Object bodyObject : envelope.getBody().getAny()) {
-                    bodyObject = Tools.getObject(bodyObject);
-                    if (bodyObject instanceof MarkupValidationResponse) {
-                        MarkupValidationResponse markupvalidationresponse = (MarkupValidationResponse) bodyObject;
-                        handleResponse(markupvalidationresponse);
-                        return true;
-                    } else {
-                        log("URL " + uriToCheck + " is ignored, it seem not to specify a valid document (e.g. link to binary file)", Project.MSG_DEBUG);
-                        continue;
-                    }
-                }
-                return false;
+            Boolean cached = readCached(reader, cacheKey);
+            if (cached != null) {
+                return cached;
             }
-            throw new BuildException("Invalid server response for URI: " + uriToCheck + " (was: " + object + ")");
+            return validate(uriToCheck, file != null ? PageContent.of(file) : null, params, reader, getResultCache(), cacheKey, out);
+        } catch (XMLStreamException e) {
+            throw new BuildException("Invalid server response for URI: " + uriToCheck, e);
         } catch (MalformedURLException e) {
             throw new BuildException("Bad URL for validation server", e);
         } catch (JAXBException e) {
@@ -385,18 +974,295 @@ public class W3CMarkupValidationTask extends Task {
     }
 
     /**
-     * Creates the actual request to the validation server for a given
-     * {@link URL} and returns an inputstream the result can be read from
+     * Sends a page found while recursing to the validator, that fetches it on
+     * its own, so its links can be extracted by
+     * {@link #extractLinks(URL, ValidationResult)} meanwhile. This is only
+     * possible if neither an index nor {@link #uploadPages} is used, the page
+     * must be fetched first then and is checked by
+     * {@link #checkPage(URL, CrawlIndex, ValidationResult)}.
+     * 
+     * @param page
+     *            the {@link URL} to check
+     * @param index
+     *            the index of the last crawl or <code>null</code>
+     * @param client
+     *            the client to send the request with
+     * @return the future result of the validator, to be combined with the
+     *         links by {@link #mergePage(ValidationResult, ValidationResult)},
+     *         or <code>null</code> if the page must be fetched first
+     */
+    Future<ValidationResult> submitPage(final URL page, CrawlIndex index, ValidatorClient client) {
+        if (index != null || uploadPages) {
+            return null;
+        }
+        return client.submit(new ValidatorClient.Request() {
+
+            public Boolean validate(BufferedLog log) throws BuildException {
+                ResponseLogger logger = new ResponseLogger(log, null, failOnInvalid());
+                return check(page, null, logger, log) ? logger.valid : null;
+            }
+        });
+    }
+
+    /**
+     * Fetches a page that was sent to the validator with
+     * {@link #submitPage(URL, CrawlIndex, ValidatorClient)} and extracts its
+     * links
+     * 
+     * @param page
+     * @param result
+     *            receives the output and the discovered urls (normalized) in
+     *            document order
+     * @throws BuildException
+     *             if the page can't be fetched
+     */
+    void extractLinks(URL page, ValidationResult result) throws BuildException {
+        CrawlIndex.Entry links = recurseInto(page, result.getLog());
+        result.setLinks(links.getLinks());
+        result.setStylesheets(links.getStylesheets(), links.getStyles());
+    }
+
+    /**
+     * Combines the result of the validator with the links of the page, the
+     * links of a page that is not a markup document are not followed
+     * 
+     * @param validated
+     *            the result of {@link #submitPage(URL, CrawlIndex, ValidatorClient)}
+     * @param links
+     *            the result of {@link #extractLinks(URL, ValidationResult)}
+     * @return the result of the page
+     */
+    ValidationResult mergePage(ValidationResult validated, ValidationResult links) {
+        ValidationResult result = new ValidationResult();
+        BufferedLog out = result.getLog();
+        validated.getLog().replay(out);
+        if (validated.getFailure() != null) {
+            result.setFailure(validated.getFailure());
+            return result;
+        }
+        if (validated.getValid() == null) {
+            return result;
+        }
+        links.getLog().replay(out);
+        if (links.getFailure() != null) {
+            result.setFailure(links.getFailure());
+            return result;
+        }
+        result.setValid(validated.getValid());
+        result.setLinks(links.getLinks());
+        result.setStylesheets(links.getStylesheets(), links.getStyles());
+        return result;
+    }
+
+    /**
+     * Checks a page found while recursing that can't be sent to the validator
+     * right away. If an index is given the page is only sent to the validator
+     * if it has changed since the result stored in the index was recorded,
+     * otherwise the stored result is replayed. With {@link #uploadPages} the
+     * page is downloaded only once, the links are extracted from the same
+     * content that is uploaded to the validator.
+     * 
+     * @param page
+     *            the {@link URL} to check
+     * @param index
+     *            the index of the last crawl or <code>null</code>
+     * @param result
+     *            receives the output, the validity and the discovered urls
+     *            (normalized) in document order, these are empty if the page
+     *            can't be checked because it is of wrong type
+     * @throws BuildException
+     */
+    void checkPage(URL page, CrawlIndex index, ValidationResult result) throws BuildException {
+        BufferedLog out = result.getLog();
+        String string = page.toString();
+        CrawlIndex.Entry previous = index != null ? index.get(string) : null;
+        try {
+            List<NameValuePair> params = buildParameters(uploadPages ? null : page);
+            ResponseLogger logger = new ResponseLogger(out, uploadPages ? string : null, failOnInvalid());
+            MarkupResponseReader reader = new MarkupResponseReader(logger);
+            ResultCache responses = index != null ? index.getResponses() : null;
+            String responseKey = index != null ? buildResponseKey(ResultCache.key().add(string), params, null) : null;
+            PageContent content = uploadPages ? new PageContent() : null;
+            CrawlIndex.Entry entry = fetchPage(page, previous, responseKey, content, out);
+            boolean replayed = false;
+            try {
+                Boolean validated = null;
+                if (entry == previous) {
+                    InputStream stored = responseKey.equals(previous.getResponseKey()) ? responses.open(responseKey) : null;
+                    if (stored != null) {
+                        //not modified, and validated with the same options, replaying an invalid page might fail the build
+                        replayed = true;
+                        try {
+                            validated = reader.read(stored);
+                        } finally {
+                            stored.close();
+                        }
+                    }
+                    if (!replayed && content != null) {
+                        //a not modified response has no content to upload
+                        entry = fetchPage(page, null, responseKey, content, out);
+                    }
+                }
+                if (validated == null) {
+                    validated = validate(page, content, params, reader, responses, responseKey, out);
+                }
+                if (validated) {
+                    result.setValid(logger.valid);
+                    result.setLinks(entry.getLinks());
+                    result.setStylesheets(entry.getStylesheets(), entry.getStyles());
+                }
+            } finally {
+                if (index != null) {
+                    //invalid pages are recorded as well, their response was stored before the build failed
+                    index.put(string, entry, replayed);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new BuildException("Invalid server response for URI: " + page, e);
+        } catch (JAXBException e) {
+            throw new BuildException("XML parser setup problem", e);
+        } catch (SAXException e) {
+            throw new BuildException("error while parsing data at " + page, e);
+        } catch (IOException e) {
+            throw new BuildException("error while accessing data at " + page, e);
+        }
+    }
+
+    /**
+     * Checks a stylesheet found while recursing with the CSS validator. With
+     * {@link #uploadPages} a linked stylesheet is downloaded and its content
+     * is sent to the validator.
+     * 
+     * @param stylesheet
+     *            the URL of a linked stylesheet or <code>null</code>
+     * @param style
+     *            the content of a <code>style</code> element if no URL is
+     *            given
+     * @param name
+     *            the name of the stylesheet in the output
+     * @param result
+     *            receives the output and the validity, it is empty if the
+     *            stylesheet can't be checked
+     * @throws BuildException
+     */
+    void checkStylesheet(URL stylesheet, String style, String name, ValidationResult result) throws BuildException {
+        BufferedLog out = result.getLog();
+        if (stylesheet != null && uploadPages) {
+            style = fetchStylesheet(stylesheet, out);
+            if (style == null) {
+                return;
+            }
+            stylesheet = null;
+        }
+        result.setValid(stylesheets.getTask().checkStylesheet(stylesheet, style, name, out, failOnInvalid()));
+    }
+
+    /**
+     * Downloads the given stylesheet
+     * 
+     * @param stylesheet
+     * @param out
+     *            the log to write messages to
+     * @return the content of the stylesheet or <code>null</code> if it is not
+     *         a stylesheet
+     * @throws BuildException
+     */
+    private String fetchStylesheet(URL stylesheet, BufferedLog out) throws BuildException {
+        try {
+            GetMethod method = new GetMethod(stylesheet.toString());
+            acquireConnection(stylesheet);
+            long start = System.nanoTime();
+            long bytes = 0;
+            try {
+                int result = executeMethod(method);
+                if (result != HttpStatus.SC_OK) {
+                    throw new IOException("Server returned " + result + " " + method.getStatusText());
+                }
+                Header contentType = method.getResponseHeader("Content-Type");
+                if (contentType != null && !contentType.getValue().toLowerCase(Locale.ENGLISH).contains("css")) {
+                    method.abort();
+                    out.log("URL " + stylesheet + " is ignored, it is not a stylesheet (" + contentType.getValue() + ")", Project.MSG_DEBUG);
+                    return null;
+                }
+                //stylesheets without a charset are most likely UTF-8 and not ISO-8859-1 as HTTP says
+                String charset = contentType != null && contentType.getValue().toLowerCase(Locale.ENGLISH).contains("charset") ? method.getResponseCharSet() : "UTF-8";
+                byte[] content = Tools.readFully(method.getResponseBodyAsStream());
+                bytes = content.length;
+                return new String(content, charset);
+            } finally {
+                method.releaseConnection();
+                releaseConnection(stylesheet);
+                recordTiming(Timings.Phase.FETCH, null, System.nanoTime() - start, bytes);
+            }
+        } catch (IOException e) {
+            throw new BuildException("error while accessing data at " + stylesheet, e);
+        }
+    }
+
+    /**
+     * Sends the given URL, fragment or file to the validator and reads the
+     * result
      * 
      * @param uriToCheck
-     *            the URL to check
-     * @return the stream to read the response from
+     *            the URL to check or <code>null</code>
+     * @param content
+     *            the content to upload instead of sending the URL or the
+     *            fragment, or <code>null</code>
+     * @param params
+     *            the parameters of the request
+     * @param reader
+     *            the reader for the response
+     * @param cache
+     *            the cache to store the response in, only used if a key is
+     *            given
+     * @param cacheKey
+     *            the key to cache the response or <code>null</code>
+     * @param out
+     *            the log to write messages to
+     * @return <code>true</code> if URL was checked, <code>false</code> if this
+     *         URL can't be checked because it is of wrong type
+     * @throws XMLStreamException
+     * @throws JAXBException
      * @throws IOException
-     *             if unrecoverable communication error occurs
-     * @throws BuildException
-     *             if server returned unexspected results
      */
-    private InputStream buildConnection(final URL uriToCheck) throws IOException, BuildException {
+    private boolean validate(URL uriToCheck, PageContent content, List<NameValuePair> params, MarkupResponseReader reader, ResultCache cache, String cacheKey, BufferedLog out) throws XMLStreamException, JAXBException, IOException {
+        if (content != null && content.source == null) {
+            out.log("URL " + uriToCheck + " is ignored, it is not a markup document (" + content.mimeType + ")", Project.MSG_DEBUG);
+            return false;
+        }
+        boolean validated;
+        ValidatorPool.Lease lease = acquirePermit();
+        try {
+            HttpMethodBase method = content != null ? buildUpload(content, params, lease) : buildConnection(uriToCheck, params, lease);
+            long start = System.nanoTime();
+            Timings.CountingInputStream response = new Timings.CountingInputStream(method.getResponseBodyAsStream());
+            try {
+                if (cacheKey != null) {
+                    validated = readResponse(reader, response, cache, cacheKey);
+                } else {
+                    validated = reader.read(response);
+                }
+            } finally {
+                method.releaseConnection();
+                recordTiming(Timings.Phase.PARSE, lease.getEndpoint().getUrl(), System.nanoTime() - start, response.getCount());
+            }
+        } finally {
+            releasePermit(lease);
+        }
+        if (!validated) {
+            out.log("URL " + uriToCheck + " is ignored, it seem not to specify a valid document (e.g. link to binary file)", Project.MSG_DEBUG);
+        }
+        return validated;
+    }
+
+    /**
+     * Builds the parameters of the request to the validation server
+     * 
+     * @param uriToCheck
+     *            the URL to check
+     * @return the parameters
+     */
+    private List<NameValuePair> buildParameters(final URL uriToCheck) {
         List<NameValuePair> params = new ArrayList<NameValuePair>();
         params.add(new NameValuePair("output", VALIDATOR_FORMAT_OUTPUT));
         if (uriToCheck != null) {
@@ -415,64 +1281,122 @@ public class W3CMarkupValidationTask extends Task {
         if (doctype != null) {
             params.add(new NameValuePair("doctype", doctype));
         }
-        HttpClient httpClient = new HttpClient();
+        return params;
+    }
+
+    /**
+     * Builds the key to cache the result of a file or fragment validation
+     * 
+     * @param params
+     *            the parameters of the request
+     * @param file
+     *            the file to check or <code>null</code>
+     * @return the key or <code>null</code> if no cache is configured
+     * @throws IOException
+     *             if the file can't be read
+     */
+    private String buildCacheKey(List<NameValuePair> params, File file) throws IOException {
+        ResultCache.KeyBuilder key = cacheKey();
+        if (key == null) {
+            return null;
+        }
+        return buildResponseKey(key, params, file);
+    }
+
+    /**
+     * Completes the given key with everything that affects the response of
+     * the validator
+     * 
+     * @param key
+     *            the key to complete
+     * @param params
+     *            the parameters of the request
+     * @param file
+     *            the file to check or <code>null</code>
+     * @return the key
+     * @throws IOException
+     *             if the file can't be read
+     */
+    private String buildResponseKey(ResultCache.KeyBuilder key, List<NameValuePair> params, File file) throws IOException {
+        key.add(validator);
+        for (NameValuePair nameValuePair : params) {
+            key.add(nameValuePair.getName()).add(nameValuePair.getValue());
+        }
+        if (file != null) {
+            key.add(file);
+        }
+        return key.build();
+    }
+
+    /**
+     * Creates and executes the actual request to the validation server for a
+     * given {@link URL}, the response can be read from the returned method that
+     * must be released afterwards
+     * 
+     * @param uriToCheck
+     *            the URL to check
+     * @param params
+     *            the parameters of the request
+     * @param lease
+     *            the lease with the validator to send the request to
+     * @return the executed method to read the response from
+     * @throws IOException
+     *             if unrecoverable communication error occurs
+     * @throws BuildException
+     *             if server returned unexspected results
+     */
+    private HttpMethodBase buildConnection(final URL uriToCheck, List<NameValuePair> params, ValidatorPool.Lease lease) throws IOException, BuildException {
         HttpMethodBase method;
         if (uriToCheck != null) {
             //URIs must be checked wia traditonal GET...
-            GetMethod getMethod = new GetMethod(validator);
+            GetMethod getMethod = new GetMethod(lease.getEndpoint().getUrl());
             getMethod.setQueryString(params.toArray(new NameValuePair[0]));
             method = getMethod;
         } else {
-            PostMethod postMethod = new PostMethod(validator);
-            if (fragment != null) {
-                //Fragment request can be checked via FORM Submission
-                postMethod.addParameters(params.toArray(new NameValuePair[0]));
-            } else {
-                //Finally files must be checked with multipart-forms....
-                postMethod.setRequestEntity(Tools.createFileUpload(uploaded_file, "uploaded_file", charset, params, postMethod.getParams()));
-            }
+            //Fragment request can be checked via FORM Submission, files are uploaded with buildUpload
+            PostMethod postMethod = new PostMethod(lease.getEndpoint().getUrl());
+            postMethod.addParameters(params.toArray(new NameValuePair[0]));
             method = postMethod;
         }
-        int result = httpClient.executeMethod(method);
-        if (result == HttpStatus.SC_OK) {
-            return method.getResponseBodyAsStream();
-        } else {
-            throw new BuildException("Server returned " + result + " " + method.getStatusText());
-        }
+        return send(method, lease);
+    }
 
+    /**
+     * Creates and executes a request that uploads the content of a file or
+     * page to the validation server with a multipart-form, the response can be
+     * read from the returned method that must be released afterwards
+     * 
+     * @param content
+     *            the content to upload
+     * @param params
+     *            the parameters of the request
+     * @param lease
+     *            the lease with the validator to send the request to
+     * @return the executed method to read the response from
+     * @throws IOException
+     *             if unrecoverable communication error occurs
+     * @throws BuildException
+     *             if server returned unexspected results
+     */
+    private HttpMethodBase buildUpload(PageContent content, List<NameValuePair> params, ValidatorPool.Lease lease) throws IOException, BuildException {
+        PostMethod postMethod = new PostMethod(lease.getEndpoint().getUrl());
+        postMethod.setRequestEntity(Tools.createUpload(content.source, content.mimeType, "uploaded_file", charset != null ? charset : content.charset, params, postMethod.getParams()));
+        return send(postMethod, lease);
     }
 
     /**
      * Takes an {@link URL} and tries to find out all linked resources
      * 
      * @param uriToRecurse
-     * @return a set of discovered urls
+     * @param out
+     *            the log to write messages to
+     * @return an entry with the discovered urls (normalized) in document order,
+     *         they are kept as strings as most of them are already known or
+     *         ignored, and the stylesheets if they are checked
      */
-    private Set<URL> recurseInto(final URL uriToRecurse) throws BuildException {
-        final Set<URL> urlsFound = new HashSet<URL>();
-        XMLReader reader = new Parser();
-        reader.setContentHandler(new DefaultHandler() {
-            @Override
-            public void startElement(String nsuri, String localName, String qName, Attributes attributes) throws SAXException {
-                if ("a".equalsIgnoreCase(qName)) {
-                    String value = attributes.getValue("href");
-                    if (value != null) {
-                        try {
-                            URL url = new URL(uriToRecurse, value);
-                            if (url.getHost().equalsIgnoreCase(uriToRecurse.getHost()) && url.getPort() == uriToRecurse.getPort()) {
-                                urlsFound.add(url);
-                            }
-                        } catch (MalformedURLException e) {
-                            log("can't parse URL for href = " + value + ", it will be ignored!", Project.MSG_ERR);
-                        }
-                    }
-                }
-            }
-        });
-        // Parsen wird gestartet
+    CrawlIndex.Entry recurseInto(final URL uriToRecurse, final BufferedLog out) throws BuildException {
         try {
-            reader.parse(new InputSource(uriToRecurse.openStream()));
-            return urlsFound;
+            return fetchPage(uriToRecurse, null, null, null, out);
         } catch (IOException e) {
             throw new BuildException("error while accessing data at " + uriToRecurse, e);
         } catch (SAXException e) {
@@ -481,40 +1405,229 @@ public class W3CMarkupValidationTask extends Task {
     }
 
     /**
-     * Handle the response by printing out the relevant parts of the response to
-     * the appropiate levels, and fails if {@link #fail} is set and validation
-     * was not successfull
+     * Fetches the given page and extracts all linked resources, the request is
+     * conditional if an entry of the last crawl is given
      * 
-     * @param markupvalidationresponse
+     * @param page
+     *            the page to fetch
+     * @param previous
+     *            the entry of the last crawl or <code>null</code>
+     * @param responseKey
+     *            the key of the validator response for the new entry
+     * @param content
+     *            receives the content of the page if not <code>null</code>
+     * @param out
+     *            the log to write messages to
+     * @return the given previous entry if the page was not modified, a new
+     *         entry otherwise
+     * @throws IOException
+     * @throws SAXException
+     */
+    private CrawlIndex.Entry fetchPage(URL page, CrawlIndex.Entry previous, String responseKey, PageContent content, BufferedLog out) throws IOException, SAXException {
+        LinkExtractor links = new LinkExtractor(page, out, stylesheets != null);
+        XMLReader reader = new Parser();
+        reader.setContentHandler(links);
+        // Parsen wird gestartet
+        String protocol = page.getProtocol();
+        if ("http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol)) {
+            GetMethod method = new GetMethod(page.toString());
+            acquireConnection(page);
+            long start = System.nanoTime();
+            Timings.CountingInputStream stream = null;
+            try {
+                boolean conditional = previous != null && previous.applyTo(method);
+                int result = executeMethod(method);
+                if (conditional && result == HttpStatus.SC_NOT_MODIFIED) {
+                    return previous;
+                }
+                if (result != HttpStatus.SC_OK) {
+                    throw new IOException("Server returned " + result + " " + method.getStatusText());
+                }
+                Header contentType = method.getResponseHeader("Content-Type");
+                if (contentType == null || isMarkup(contentType.getValue())) {
+                    stream = new Timings.CountingInputStream(method.getResponseBodyAsStream());
+                    InputStream source = stream;
+                    if (content != null) {
+                        //the links are extracted from the same bytes the validator gets
+                        source = content.read(page, stream, contentType != null ? contentType.getValue() : null);
+                    }
+                    reader.parse(new InputSource(source));
+                } else {
+                    //no need to download binaries, there are no links to find
+                    method.abort();
+                    if (content != null) {
+                        content.mimeType = contentType.getValue();
+                    }
+                }
+                return CrawlIndex.Entry.from(method, responseKey, links);
+            } finally {
+                method.releaseConnection();
+                releaseConnection(page);
+                recordTiming(Timings.Phase.FETCH, null, System.nanoTime() - start, stream != null ? stream.getCount() : 0);
+            }
+        } else {
+            InputStream stream = page.openStream();
+            if (content != null) {
+                InputStream pageStream = stream;
+                try {
+                    stream = content.read(page, pageStream, URLConnection.guessContentTypeFromName(page.getPath()));
+                } finally {
+                    pageStream.close();
+                }
+            }
+            reader.parse(new InputSource(stream));
+            return new CrawlIndex.Entry(null, null, responseKey, links.getLinks(), links.getStylesheets(), links.getStyles());
+        }
+    }
+
+    private static boolean isMarkup(String contentType) {
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.contains("html") || type.contains("xml");
+    }
+
+    /**
+     * The content of a file or page that is uploaded to the validator
+     */
+    private static final class PageContent {
+
+        /**
+         * The content or <code>null</code> if it is not markup
+         */
+        private PartSource source;
+
+        private String     mimeType;
+
+        private String     charset;
+
+        /**
+         * @param file
+         * @return the content of the given file
+         * @throws FileNotFoundException
+         */
+        static PageContent of(File file) throws FileNotFoundException {
+            PageContent content = new PageContent();
+            content.source = new FilePartSource(file);
+            content.mimeType = URLConnection.guessContentTypeFromName(file.getName());
+            return content;
+        }
+
+        /**
+         * Reads the content of a page
+         * 
+         * @param page
+         *            the URL of the page
+         * @param stream
+         *            the stream to read from
+         * @param contentType
+         *            the value of the Content-Type header or <code>null</code>
+         * @return a stream to read the content again
+         * @throws IOException
+         */
+        InputStream read(URL page, InputStream stream, String contentType) throws IOException {
+            byte[] bytes = Tools.readFully(stream);
+            String name = page.getPath().substring(page.getPath().lastIndexOf('/') + 1);
+            source = new ByteArrayPartSource(name.length() > 0 ? name : "index.html", bytes);
+            if (contentType != null) {
+                HeaderElement[] elements = HeaderElement.parseElements(contentType);
+                if (elements.length > 0) {
+                    mimeType = elements[0].getName();
+                    NameValuePair charsetParameter = elements[0].getParameterByName("charset");
+                    if (charsetParameter != null) {
+                        charset = charsetParameter.getValue();
+                    }
+                }
+            }
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    /**
+     * Handles the response by printing out the relevant parts of the response
+     * to the appropiate levels while it is read, and fails if {@link #fail} is
+     * set and validation was not successfull
      */
-    private void handleResponse(MarkupValidationResponse response) {
-        log("URI:        " + response.getUri());
-        log("Doctype:    " + response.getDoctype());
-        log("Charset:    " + response.getCharset());
-        log("is valid:   " + response.isValidity());
-        List<Debug> debugList = response.getDebug();
-        for (Debug debug : debugList) {
-            log(String.format(debugPattern, response.getUri(), debug.getName(), debug.getValue()), Project.MSG_WARN);
+    private final class ResponseLogger implements MarkupResponseReader.Listener {
+
+        private final BufferedLog     out;
+
+        private final String          uri;
+
+        private final boolean         failOnInvalid;
+
+        /**
+         * The validity of the response once it was read
+         */
+        private Boolean               valid;
+
+        /**
+         * The document for the reports, <code>null</code> if there are none
+         */
+        private ReportWriter.Document document;
+
+        /**
+         * @param out
+         *            the log to write messages to
+         * @param uri
+         *            the URI to report instead of the one in the response, or
+         *            <code>null</code>
+         * @param failOnInvalid
+         *            <code>true</code> if an invalid document should fail the
+         *            build
+         */
+        ResponseLogger(BufferedLog out, String uri, boolean failOnInvalid) {
+            this.out = out;
+            this.uri = uri;
+            this.failOnInvalid = failOnInvalid;
+        }
+
+        public void startResponse(MarkupValidationResponse response) {
+            if (uri != null) {
+                //the validator only knows the name of an upload
+                response.setUri(uri);
+            }
+            out.log("URI:        " + response.getUri());
+            out.log("Doctype:    " + response.getDoctype());
+            out.log("Charset:    " + response.getCharset());
+            out.log("is valid:   " + response.isValidity());
+            document = hasReports() ? new ReportWriter.Document(response.getUri()) : null;
+            List<Debug> debugList = response.getDebug();
+            for (Debug debug : debugList) {
+                out.log(String.format(debugPattern, response.getUri(), debug.getName(), debug.getValue()), Project.MSG_WARN);
+            }
         }
-        ValidationErrors errors = response.getErrors();
-        if (errors != null) {
-            for (org.w3.markup.validator.Error error : errors.getErrorlist().getError()) {
-                logMessage(errorPattern, response, error, Project.MSG_ERR);
+
+        public void error(MarkupValidationResponse response, Error error) {
+            if (!aggregate) {
+                logMessage(errorPattern, response, error, Project.MSG_ERR, out);
+            }
+            if (document != null) {
+                document.error(error.getLine(), error.getCol(), error.getMessage(), error.getMessageid(), error.getSource());
             }
         }
-        ValidationWarnings warnings = response.getWarnings();
-        if (warnings != null) {
-            for (Warning warning : warnings.getWarninglist().getWarning()) {
-                logMessage(warningPattern, response, warning, Project.MSG_WARN);
+
+        public void warning(MarkupValidationResponse response, Warning warning) {
+            if (!aggregate) {
+                logMessage(warningPattern, response, warning, Project.MSG_WARN, out);
+            }
+            if (document != null) {
+                document.warning(warning.getLine(), warning.getCol(), warning.getMessage(), warning.getMessageid(), warning.getSource());
             }
         }
-        if (!response.isValidity() && fail) {
-            throw new BuildException("Document at " + response.getUri() + " is invalid (" + response.getErrors().getErrorcount() + " errors)");
+
+        public void endResponse(MarkupValidationResponse response) {
+            valid = Boolean.valueOf(response.isValidity());
+            if (document != null) {
+                document.setValid(valid);
+                out.report(document);
+            }
+            if (!response.isValidity() && failOnInvalid) {
+                throw new BuildException("Document at " + response.getUri() + " is invalid (" + response.getErrors().getErrorcount() + " errors)");
+            }
         }
     }
 
-    private void logMessage(String errorPattern, MarkupValidationResponse response, Culprit culprit, int level) {
-        log(String.format(errorPattern, culprit.getLine(), culprit.getCol(), culprit.getMessage(), culprit.getMessageid(), culprit.getSource(), culprit.getExplanation(), response.getUri()), level);
+    private void logMessage(String errorPattern, MarkupValidationResponse response, Culprit culprit, int level, BufferedLog out) {
+        out.log(String.format(errorPattern, culprit.getLine(), culprit.getCol(), culprit.getMessage(), culprit.getMessageid(), culprit.getSource(), culprit.getExplanation(), response.getUri()), level);
     }
 
 }
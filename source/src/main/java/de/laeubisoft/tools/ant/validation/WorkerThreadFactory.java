@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * Ant Validation Toolkit
+ * %%
+ * Copyright (C) 2013 Christoph Läubrich
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.laeubisoft.tools.ant.validation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so a hanging request can never block the
+ * shutdown of the build. On Java 21 and later executors can also use (named)
+ * virtual threads, these are always daemon threads.
+ * 
+ * @author Christoph Läubrich
+ */
+final class WorkerThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    private final String        prefix;
+
+    WorkerThreadFactory(String name) {
+        this.prefix = prefix(name);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task, the
+     * API is looked up reflectively as it only exists on Java 21 and later
+     * 
+     * @param name
+     *            the name of the threads
+     * @return the executor or <code>null</code> if virtual threads are not
+     *         supported by the running JVM
+     */
+    static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix(name), Long.valueOf(1));
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (Exception e) {
+            //older JVM or preview feature not enabled
+            return null;
+        }
+    }
+
+    private static String prefix(String name) {
+        return (name != null ? name : "validation") + "-worker-";
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}